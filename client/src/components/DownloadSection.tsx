@@ -98,8 +98,6 @@ export default function DownloadSection() {
       a.click();
       document.body.removeChild(a);
       
-      // Notify the server that download has started
-      await apiRequest("POST", "/api/files/downloaded", { code });
       return true;
     },
     onSuccess: () => {
@@ -0,0 +1,47 @@
+package com.fileshare.benchmark;
+
+import com.fileshare.dto.UserDTO;
+import com.fileshare.security.GoogleTokenVerifier;
+import com.fileshare.service.UserService;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Beans layered over the application for benchmark runs.
+ */
+@Configuration
+public class BenchmarkConfig {
+
+    /**
+     * Takes the application's verifier bean name, so the real one, with its scheduled key
+     * fetches from Google, is never created.
+     */
+    @Bean
+    public GoogleTokenVerifier googleTokenVerifier(UserService userService) {
+        return new StubGoogleTokenVerifier(userService);
+    }
+
+    /**
+     * Accepts any credential as the ID of the user signing in, so HTTP clients can log in
+     * through {@code POST /api/auth/google} without Google.
+     */
+    static class StubGoogleTokenVerifier extends GoogleTokenVerifier {
+
+        private final UserService userService;
+
+        StubGoogleTokenVerifier(UserService userService) {
+            super(userService);
+            this.userService = userService;
+        }
+
+        @Override
+        public UserDTO verifyGoogleToken(String token) {
+            return userService.createIfNotExists(token, token, token + "@bench.local", null);
+        }
+
+        @Override
+        public void refreshSigningKeys() {
+            // No Google keys needed
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.fileshare.benchmark;
+
+import com.fileshare.FileShareApplication;
+import com.fileshare.model.User;
+import com.fileshare.repository.UserRepository;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Starts the full application against an in-memory H2 database and a temporary upload
+ * directory, so every benchmark runs the production beans without external services.
+ */
+public final class BenchmarkEnvironment implements AutoCloseable {
+
+    private final Path storageDir;
+    private final ConfigurableApplicationContext context;
+
+    private BenchmarkEnvironment(Path storageDir, ConfigurableApplicationContext context) {
+        this.storageDir = storageDir;
+        this.context = context;
+    }
+
+    /**
+     * @param properties extra {@code key=value} overrides for this run
+     */
+    public static BenchmarkEnvironment start(String... properties) throws IOException {
+        Path storageDir = Files.createTempDirectory("fileshare-bench-");
+
+        // Command line arguments take precedence over application.properties
+        List<String> args = new ArrayList<>();
+        args.add("--spring.datasource.url=jdbc:h2:mem:" + storageDir.getFileName()
+                + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        args.add("--file.upload.directory=" + storageDir);
+        if (Arrays.stream(properties).noneMatch(property -> property.startsWith("jwt.secret="))) {
+            // A fresh signing secret per run; tokens never outlive it
+            args.add("--jwt.secret=" + UUID.randomUUID() + UUID.randomUUID());
+        }
+        for (String property : properties) {
+            args.add("--" + property);
+        }
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(FileShareApplication.class, BenchmarkConfig.class)
+                .profiles("benchmark")
+                .run(args.toArray(String[]::new));
+        return new BenchmarkEnvironment(storageDir, context);
+    }
+
+    public <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    public <T> T getBean(String name, Class<T> type) {
+        return context.getBean(name, type);
+    }
+
+    public JdbcTemplate jdbc() {
+        return context.getBean(JdbcTemplate.class);
+    }
+
+    public int port() {
+        return Integer.parseInt(context.getEnvironment().getRequiredProperty("local.server.port"));
+    }
+
+    public Path storageDir() {
+        return storageDir;
+    }
+
+    public User createUser(String id) {
+        return getBean(UserRepository.class).save(User.builder()
+                .id(id)
+                .name(id)
+                .email(id + "@bench.local")
+                .build());
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        FileSystemUtils.deleteRecursively(storageDir.toFile());
+    }
+}
@@ -0,0 +1,65 @@
+package com.fileshare.benchmark;
+
+import com.fileshare.service.ActiveFileRegistry;
+import com.fileshare.service.CodeGenerationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection code generation with the given number of codes already active.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class CodeGenerationBenchmark {
+
+    @Param({"0", "10000", "100000", "1000000"})
+    public int activeFiles;
+
+    private BenchmarkEnvironment environment;
+    private CodeGenerationService codeGenerationService;
+
+    @Setup
+    public void setUp() throws Exception {
+        environment = BenchmarkEnvironment.start();
+        codeGenerationService = environment.getBean(CodeGenerationService.class);
+
+        // Fill the registry directly; lookups never reach the database
+        ActiveFileRegistry registry = environment.getBean(ActiveFileRegistry.class);
+        LocalDateTime expiresAt = LocalDateTime.now().plusDays(1);
+        for (int i = 0; i < activeFiles; i++) {
+            registry.register(codeGenerationService.generateUniqueCode(), (long) i, "uploader", expiresAt);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public String generateUniqueCode() {
+        return codeGenerationService.generateUniqueCode();
+    }
+
+    @Benchmark
+    public int calculateCodeLength() {
+        return codeGenerationService.calculateCodeLength();
+    }
+}
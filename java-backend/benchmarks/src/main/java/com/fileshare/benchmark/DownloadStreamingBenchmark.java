@@ -0,0 +1,147 @@
+package com.fileshare.benchmark;
+
+import com.fileshare.service.EncryptionService;
+import com.fileshare.util.FileUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download streaming throughput into a loopback socket drained by a background thread.
+ *
+ * {@code transfer} is the path the download endpoint takes for stored files
+ * ({@link FileUtil#transfer}, which lets the kernel copy file to socket);
+ * {@code heapCopy} is a plain buffered stream copy for comparison. {@code decrypt} streams
+ * the same content stored encrypted, and {@code decryptTail} only its last 64KB, which
+ * decrypts just the segments holding it. Scores are files per second; multiply by
+ * {@code fileSize} for bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadStreamingBenchmark {
+
+    private static final int DRAIN_BUFFER_SIZE = 1024 * 1024;
+    private static final int TAIL_SIZE = 64 * 1024;
+
+    @Param({"65536", "1048576", "67108864"})
+    public int fileSize;
+
+    private Path directory;
+    private Path file;
+    private Path encryptedFile;
+    private EncryptionService encryptionService;
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private Thread drainer;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("fileshare-bench-");
+        file = directory.resolve("download.bin");
+        byte[] block = new byte[DRAIN_BUFFER_SIZE];
+        ThreadLocalRandom.current().nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, Math.min(block.length, fileSize - written));
+            }
+        }
+
+        byte[] masterKey = new byte[32];
+        ThreadLocalRandom.current().nextBytes(masterKey);
+        encryptionService = new EncryptionService(true, Base64.getEncoder().encodeToString(masterKey),
+                DataSize.ofKilobytes(64), 0, 16, new SimpleMeterRegistry());
+        encryptedFile = directory.resolve("download.bin" + EncryptionService.FILE_SUFFIX);
+        try (InputStream in = Files.newInputStream(file)) {
+            encryptionService.encrypt(in, encryptedFile);
+        }
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        SocketChannel peer = server.accept();
+        drainer = new Thread(() -> drain(peer), "download-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        drainer.join(TimeUnit.SECONDS.toMillis(5));
+        server.close();
+        encryptionService.shutdown();
+        Files.deleteIfExists(encryptedFile);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void transfer() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileUtil.transfer(channel, 0, fileSize, client);
+        }
+    }
+
+    @Benchmark
+    public long heapCopy() throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.transferTo(Channels.newOutputStream(client));
+        }
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException {
+        try (InputStream in = encryptionService.openStored(encryptedFile, 0)) {
+            return in.transferTo(Channels.newOutputStream(client));
+        }
+    }
+
+    @Benchmark
+    public long decryptTail() throws IOException {
+        try (InputStream in = encryptionService.openStored(encryptedFile, Math.max(0, fileSize - TAIL_SIZE))) {
+            return in.transferTo(Channels.newOutputStream(client));
+        }
+    }
+
+    private static void drain(SocketChannel peer) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DRAIN_BUFFER_SIZE);
+        try (peer) {
+            while (peer.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // Socket closed at teardown
+        }
+    }
+}
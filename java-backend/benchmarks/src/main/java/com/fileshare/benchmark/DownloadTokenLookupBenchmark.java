@@ -0,0 +1,92 @@
+package com.fileshare.benchmark;
+
+import com.fileshare.model.File;
+import com.fileshare.service.DownloadTokenService;
+import com.fileshare.service.FileStorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving a download token to its file row with the files table at different sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class DownloadTokenLookupBenchmark {
+
+    private static final int INSERT_BATCH_SIZE = 10_000;
+    private static final int TOKEN_COUNT = 4096;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int rows;
+
+    private BenchmarkEnvironment environment;
+    private FileStorageService fileStorageService;
+    private String[] tokens;
+
+    @Setup
+    public void setUp() throws Exception {
+        environment = BenchmarkEnvironment.start();
+        fileStorageService = environment.getBean(FileStorageService.class);
+        environment.createUser("uploader");
+
+        JdbcTemplate jdbc = environment.jdbc();
+        seedFiles(jdbc, rows);
+
+        // Tokens for random rows, so lookups don't all hit the same index pages
+        List<Long> ids = jdbc.queryForList("SELECT id FROM files", Long.class);
+        DownloadTokenService downloadTokenService = environment.getBean(DownloadTokenService.class);
+        tokens = new String[TOKEN_COUNT];
+        for (int i = 0; i < TOKEN_COUNT; i++) {
+            tokens[i] = downloadTokenService.createToken(ids.get(ThreadLocalRandom.current().nextInt(ids.size())));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public Optional<File> getFileByDownloadToken() {
+        return fileStorageService.getFileByDownloadToken(tokens[ThreadLocalRandom.current().nextInt(TOKEN_COUNT)]);
+    }
+
+    static void seedFiles(JdbcTemplate jdbc, int rows) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        Timestamp expiresAt = Timestamp.valueOf(LocalDateTime.now().plusDays(1));
+
+        for (int from = 0; from < rows; from += INSERT_BATCH_SIZE) {
+            List<Object[]> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+            for (int i = from; i < Math.min(from + INSERT_BATCH_SIZE, rows); i++) {
+                batch.add(new Object[]{"file-" + i + ".bin", "application/octet-stream", "/dev/null", 1024L,
+                        "B" + Integer.toString(i, 36).toUpperCase(), "WAITING_FOR_DOWNLOAD", expiresAt,
+                        "uploader", now});
+            }
+            jdbc.batchUpdate("INSERT INTO files (file_name, content_type, path, size, connection_code, status, "
+                    + "expires_at, user_id, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", batch);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.fileshare.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * End-to-end load generator for the upload / verify / download mix.
+ *
+ * Starts the application like the benchmarks do (in-memory database, temporary storage, stub
+ * Google verifier), signs in a pool of users over HTTP and then issues requests at a fixed rate.
+ * The load is open loop: latency is measured from when a request was due, so a stalled server
+ * shows up in the percentiles instead of slowing the generator down. Uploads feed connection
+ * codes to verifies and verifies feed download URLs to downloads; an operation with nothing to
+ * consume yet runs its producer instead. Brute-force traffic guesses codes from its own client
+ * addresses (sent as {@code X-Forwarded-For}) and is expected to be rejected or blocked.
+ *
+ * The report gives per operation throughput, latency percentiles and error rate, plus a
+ * per-second timeline of requests, heap, GC and open file descriptors. The server runs in this
+ * JVM, so the JVM figures include the generator.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fileshare.benchmark.LoadTest \
+ *     [rate=200] [seconds=60] [mix=upload:3,verify:3,download:3,bruteforce:1] \
+ *     [fileSizeKb=64] [users=50] [attackers=20] [maxInFlight=2000]
+ * </pre>
+ */
+public class LoadTest {
+
+    private static final String RESULT_FILE = "load-test.json";
+    private static final String BOUNDARY = "fileshare-load-test-boundary";
+    private static final String CODE_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    private static final int GUESSED_CODE_LENGTH = 6;
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    enum Operation {
+        UPLOAD, VERIFY, DOWNLOAD, BRUTEFORCE
+    }
+
+    public record OperationResult(String operation, long requests, long errors, double errorRate,
+                                  double requestsPerSecond, double p50Millis, double p90Millis,
+                                  double p99Millis, double p999Millis, double maxMillis) {
+    }
+
+    public record Sample(int second, long requests, long errors, int inFlight, long heapUsedMb,
+                         long gcCount, long gcMillis, long openFileDescriptors) {
+    }
+
+    public record Report(Map<String, String> config, long dropped, List<OperationResult> operations,
+                         List<Sample> timeline) {
+    }
+
+    private record Share(String code, int uploader) {
+    }
+
+    private record Grant(String url, int downloader) {
+    }
+
+    /**
+     * Latencies and outcomes of one operation; also counts per timeline interval.
+     */
+    private static final class Stats {
+
+        private long[] latencyMicros = new long[4096];
+        private int count;
+        private long errors;
+        private long intervalRequests;
+        private long intervalErrors;
+
+        synchronized void record(long latencyNanos, boolean ok) {
+            if (count == latencyMicros.length) {
+                latencyMicros = Arrays.copyOf(latencyMicros, count * 2);
+            }
+            latencyMicros[count++] = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+            intervalRequests++;
+            if (!ok) {
+                errors++;
+                intervalErrors++;
+            }
+        }
+
+        synchronized long[] drainInterval() {
+            long[] interval = {intervalRequests, intervalErrors};
+            intervalRequests = 0;
+            intervalErrors = 0;
+            return interval;
+        }
+
+        synchronized OperationResult result(Operation operation, double seconds) {
+            long[] sorted = Arrays.copyOf(latencyMicros, count);
+            Arrays.sort(sorted);
+            return new OperationResult(operation.name().toLowerCase(), count, errors,
+                    count == 0 ? 0 : (double) errors / count, count / seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), percentile(sorted, 1.0));
+        }
+    }
+
+    private final Map<String, String> config;
+    private final int rate;
+    private final int seconds;
+    private final int users;
+    private final int attackers;
+    private final int maxInFlight;
+    private final byte[] uploadBody;
+    private final Operation[] weightedOperations;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final Queue<Share> shares = new ConcurrentLinkedQueue<>();
+    private final Queue<Grant> grants = new ConcurrentLinkedQueue<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final List<Sample> timeline = new ArrayList<>();
+
+    private HttpClient client;
+    private String baseUrl;
+    private String[] accessTokens;
+    private Semaphore inFlight;
+
+    LoadTest(Map<String, String> config) {
+        this.config = config;
+        this.rate = Integer.parseInt(config.get("rate"));
+        this.seconds = Integer.parseInt(config.get("seconds"));
+        this.users = Integer.parseInt(config.get("users"));
+        this.attackers = Integer.parseInt(config.get("attackers"));
+        this.maxInFlight = Integer.parseInt(config.get("maxInFlight"));
+        if (users < 2) {
+            throw new IllegalArgumentException("users must be at least 2: nobody can download their own upload");
+        }
+        this.uploadBody = multipartBody(Integer.parseInt(config.get("fileSizeKb")) * 1024);
+        this.weightedOperations = parseMix(config.get("mix"));
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> config = new LinkedHashMap<>();
+        config.put("rate", "200");
+        config.put("seconds", "60");
+        config.put("mix", "upload:3,verify:3,download:3,bruteforce:1");
+        config.put("fileSizeKb", "64");
+        config.put("users", "50");
+        config.put("attackers", "20");
+        config.put("maxInFlight", "2000");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !config.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            config.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        Report report = new LoadTest(config).run();
+
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        mapper.writeValue(Paths.get(RESULT_FILE).toFile(), report);
+        System.out.println(mapper.writeValueAsString(report));
+    }
+
+    Report run() throws Exception {
+        try (BenchmarkEnvironment environment = BenchmarkEnvironment.start(
+                // Brute-force and legitimate clients are told apart by their forwarded address
+                "server.forward-headers-strategy=native",
+                "file.connection-code.expiry-minutes=60",
+                "file.download-token.expiry-seconds=3600")) {
+            ExecutorService executor = Executors.newCachedThreadPool();
+            ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+            try {
+                client = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_1_1)
+                        .executor(executor)
+                        .build();
+                baseUrl = "http://localhost:" + environment.port();
+                inFlight = new Semaphore(maxInFlight);
+                signIn();
+
+                long start = System.nanoTime();
+                sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+                generate(start);
+                if (!inFlight.tryAcquire(maxInFlight, DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    System.err.println("Gave up waiting for " + (maxInFlight - inFlight.availablePermits())
+                            + " requests still in flight");
+                }
+                double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+                sampler.shutdown();
+                sampler.awaitTermination(5, TimeUnit.SECONDS);
+                List<OperationResult> operations = new ArrayList<>();
+                for (Operation operation : Operation.values()) {
+                    operations.add(stats.get(operation).result(operation, elapsedSeconds));
+                }
+                return new Report(config, dropped.get(), operations, timeline);
+            } finally {
+                sampler.shutdownNow();
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void signIn() throws Exception {
+        accessTokens = new String[users];
+        for (int i = 0; i < users; i++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/auth/google"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"credential\":\"load-user-" + i + "\"}"))
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("Login failed with status " + response.statusCode());
+            }
+            accessTokens[i] = mapper.readTree(response.body()).path("accessToken").asText();
+        }
+    }
+
+    private void generate(long start) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (long i = 0; ; i++) {
+            long due = start + i * intervalNanos;
+            if (due >= end) {
+                return;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!inFlight.tryAcquire()) {
+                // The server has fallen this far behind; count it rather than queue without bound
+                dropped.incrementAndGet();
+                continue;
+            }
+            Operation operation = weightedOperations[ThreadLocalRandom.current().nextInt(weightedOperations.length)];
+            issue(operation, due).whenComplete((result, error) -> inFlight.release());
+        }
+    }
+
+    private CompletableFuture<Void> issue(Operation operation, long due) {
+        switch (operation) {
+            case DOWNLOAD: {
+                Grant grant = grants.poll();
+                if (grant != null) {
+                    return download(grant, due);
+                }
+                // Nothing verified yet; fall through to produce a grant
+            }
+            case VERIFY: {
+                Share share = shares.poll();
+                if (share != null) {
+                    return verify(share, due);
+                }
+                // Nothing uploaded yet; fall through to produce a share
+            }
+            case UPLOAD:
+                return upload(due);
+            default:
+                return bruteForce(due);
+        }
+    }
+
+    private CompletableFuture<Void> upload(long due) {
+        int uploader = ThreadLocalRandom.current().nextInt(users);
+        HttpRequest request = authorized(uploader, "/api/files/upload")
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(uploadBody))
+                .build();
+        return send(Operation.UPLOAD, request, HttpResponse.BodyHandlers.ofString(), due, response -> {
+            if (response.statusCode() != 200) {
+                return false;
+            }
+            shares.add(new Share(json(response.body()).path("connectionCode").asText(), uploader));
+            return true;
+        });
+    }
+
+    private CompletableFuture<Void> verify(Share share, long due) {
+        // Anyone but the uploader
+        int downloader = (share.uploader() + 1 + ThreadLocalRandom.current().nextInt(users - 1)) % users;
+        HttpRequest request = authorized(downloader, "/api/files/verify?code=" + share.code())
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        return send(Operation.VERIFY, request, HttpResponse.BodyHandlers.ofString(), due, response -> {
+            if (response.statusCode() != 200) {
+                return false;
+            }
+            grants.add(new Grant(json(response.body()).path("downloadUrl").asText(), downloader));
+            return true;
+        });
+    }
+
+    private CompletableFuture<Void> download(Grant grant, long due) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(grant.url()))
+                .header("Authorization", "Bearer " + accessTokens[grant.downloader()])
+                .header("X-Forwarded-For", userAddress(grant.downloader()))
+                .GET()
+                .build();
+        return send(Operation.DOWNLOAD, request, HttpResponse.BodyHandlers.discarding(), due,
+                response -> response.statusCode() == 200);
+    }
+
+    private CompletableFuture<Void> bruteForce(long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder code = new StringBuilder(GUESSED_CODE_LENGTH);
+        for (int i = 0; i < GUESSED_CODE_LENGTH; i++) {
+            code.append(CODE_CHARACTERS.charAt(random.nextInt(CODE_CHARACTERS.length())));
+        }
+        int attacker = random.nextInt(attackers);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/files/verify?code=" + code))
+                .header("Authorization", "Bearer " + accessTokens[attacker % users])
+                .header("X-Forwarded-For", "10.2." + (attacker / 256) + "." + (attacker % 256))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        // Wrong codes are refused and repeat offenders blocked; anything else is an error
+        return send(Operation.BRUTEFORCE, request, HttpResponse.BodyHandlers.discarding(), due,
+                response -> response.statusCode() == 404 || response.statusCode() == 429);
+    }
+
+    private HttpRequest.Builder authorized(int user, String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Authorization", "Bearer " + accessTokens[user])
+                .header("X-Forwarded-For", userAddress(user));
+    }
+
+    private <T> CompletableFuture<Void> send(Operation operation, HttpRequest request,
+                                             HttpResponse.BodyHandler<T> handler, long due,
+                                             Predicate<HttpResponse<T>> check) {
+        Stats operationStats = stats.get(operation);
+        return client.sendAsync(request, handler)
+                .handle((response, error) -> {
+                    boolean ok;
+                    try {
+                        ok = error == null && check.test(response);
+                    } catch (RuntimeException e) {
+                        ok = false;
+                    }
+                    operationStats.record(System.nanoTime() - due, ok);
+                    return null;
+                });
+    }
+
+    private void sample() {
+        long requests = 0;
+        long errors = 0;
+        for (Stats operationStats : stats.values()) {
+            long[] interval = operationStats.drainInterval();
+            requests += interval[0];
+            errors += interval[1];
+        }
+
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcMillis += Math.max(0, collector.getCollectionTime());
+        }
+        long openFileDescriptors = -1;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean unix) {
+            openFileDescriptors = unix.getOpenFileDescriptorCount();
+        }
+
+        // GC figures are cumulative since the JVM started
+        timeline.add(new Sample(timeline.size() + 1, requests, errors, maxInFlight - inFlight.availablePermits(),
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024),
+                gcCount, gcMillis, openFileDescriptors));
+    }
+
+    private JsonNode json(String body) {
+        try {
+            return mapper.readTree(body);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unexpected response body", e);
+        }
+    }
+
+    private static String userAddress(int user) {
+        return "10.1." + (user / 256) + "." + (user % 256);
+    }
+
+    private static Operation[] parseMix(String mix) {
+        List<Operation> weighted = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            Operation operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                weighted.add(operation);
+            }
+        }
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("mix needs at least one operation");
+        }
+        return weighted.toArray(Operation[]::new);
+    }
+
+    private static byte[] multipartBody(int fileSize) {
+        byte[] content = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(content);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(fileSize + 256);
+        body.writeBytes(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"load.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.writeBytes(content);
+        body.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    private static double percentile(long[] sortedMicros, double quantile) {
+        if (sortedMicros.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sortedMicros.length) - 1;
+        return sortedMicros[Math.max(0, Math.min(index, sortedMicros.length - 1))] / 1000.0;
+    }
+}
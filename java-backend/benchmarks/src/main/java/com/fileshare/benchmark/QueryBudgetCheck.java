@@ -0,0 +1,195 @@
+package com.fileshare.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fileshare.config.QueryBudget;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Regression guard for {@link QueryBudget}: drives every budgeted endpoint over HTTP and exits
+ * with status 1 if any of them issued more JDBC statements than its target, declares a budget
+ * above its target (or has none listed), or was not exercised at all.
+ *
+ * Bound to the benchmarks module's {@code verify} phase, so a change that adds queries to a hot
+ * endpoint fails the build rather than showing up as a latency spike. It can also be run on
+ * its own:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fileshare.benchmark.QueryBudgetCheck
+ * </pre>
+ */
+public class QueryBudgetCheck {
+
+    private static final String BOUNDARY = "fileshare-query-budget-boundary";
+
+    // Statements per request each budgeted endpoint is held to; raising a budget means raising it here too
+    private static final Map<String, Integer> TARGETS = Map.of(
+            "AuthController.getCurrentUser", 1,
+            "FileController.uploadFile", 3,
+            "FileController.verifyConnectionCode", 2,
+            "FileController.downloadFile", 1);
+
+    // Requests exercise() sends to each budgeted endpoint
+    private static final Map<String, Integer> EXERCISED = Map.of(
+            "AuthController.getCurrentUser", 1,
+            "FileController.uploadFile", 1,
+            "FileController.verifyConnectionCode", 2,
+            "FileController.downloadFile", 1);
+
+    // How long to wait for the last requests to be recorded
+    private static final long SETTLE_TIMEOUT_MILLIS = 10_000;
+
+    public record EndpointResult(String endpoint, int budget, int target, long requests, double maxStatements,
+                                 double meanRows, boolean withinBudget) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<EndpointResult> results;
+        try (BenchmarkEnvironment environment = BenchmarkEnvironment.start("db.query-stats.enabled=true")) {
+            exercise("http://localhost:" + environment.port());
+            awaitRecorded(environment.getBean(MeterRegistry.class));
+            results = check(environment);
+        }
+
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        System.out.println(mapper.writeValueAsString(results));
+        boolean failed = results.stream().anyMatch(result -> !result.withinBudget());
+        if (failed) {
+            System.err.println("Query budget check failed");
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * One sign-in for each of two users, then the share flow from upload to download.
+     */
+    private static void exercise(String baseUrl) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        ObjectMapper mapper = new ObjectMapper();
+        String sender = signIn(client, mapper, baseUrl, "budget-sender");
+        String recipient = signIn(client, mapper, baseUrl, "budget-recipient");
+
+        expect(200, client.send(authorized(baseUrl + "/api/auth/me", sender).GET().build(),
+                HttpResponse.BodyHandlers.discarding()));
+
+        HttpResponse<String> upload = client.send(authorized(baseUrl + "/api/files/upload", sender)
+                        .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(multipartBody(4096)))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        expect(200, upload);
+        String code = mapper.readTree(upload.body()).path("connectionCode").asText();
+
+        expect(404, client.send(authorized(baseUrl + "/api/files/verify?code=WRONG0", recipient)
+                        .POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.discarding()));
+        HttpResponse<String> verify = client.send(authorized(baseUrl + "/api/files/verify?code=" + code, recipient)
+                        .POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString());
+        expect(200, verify);
+        String downloadUrl = mapper.readTree(verify.body()).path("downloadUrl").asText();
+
+        expect(200, client.send(authorized(downloadUrl, recipient).GET().build(),
+                HttpResponse.BodyHandlers.discarding()));
+    }
+
+    /**
+     * Waits until every request sent has been recorded: the client may see a response before
+     * {@code QueryStatsInterceptor} records it, once the request has completed.
+     */
+    private static void awaitRecorded(MeterRegistry registry) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MILLIS;
+        while (!recorded(registry) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static boolean recorded(MeterRegistry registry) {
+        return EXERCISED.entrySet().stream().allMatch(entry -> {
+            DistributionSummary statements = registry.find("fileshare.db.statements")
+                    .tag("endpoint", entry.getKey()).summary();
+            return statements != null && statements.count() >= entry.getValue();
+        });
+    }
+
+    private static List<EndpointResult> check(BenchmarkEnvironment environment) {
+        MeterRegistry registry = environment.getBean(MeterRegistry.class);
+        RequestMappingHandlerMapping mapping = environment.getBean("requestMappingHandlerMapping",
+                RequestMappingHandlerMapping.class);
+
+        List<EndpointResult> results = new ArrayList<>();
+        for (HandlerMethod handlerMethod : mapping.getHandlerMethods().values()) {
+            QueryBudget budget = handlerMethod.getMethodAnnotation(QueryBudget.class);
+            if (budget == null) {
+                continue;
+            }
+            // Same naming as QueryStatsInterceptor
+            String endpoint = handlerMethod.getBeanType().getSimpleName() + "." + handlerMethod.getMethod().getName();
+            DistributionSummary statements = registry.find("fileshare.db.statements").tag("endpoint", endpoint).summary();
+            DistributionSummary rows = registry.find("fileshare.db.rows").tag("endpoint", endpoint).summary();
+            Counter exceeded = registry.find("fileshare.db.budget.exceeded").tag("endpoint", endpoint).counter();
+            long requests = statements != null ? statements.count() : 0;
+            double maxStatements = statements != null ? statements.max() : 0;
+            // An endpoint without a target fails, so a new budget can't go unchecked
+            int target = TARGETS.getOrDefault(endpoint, 0);
+            results.add(new EndpointResult(
+                    endpoint,
+                    budget.statements(),
+                    target,
+                    requests,
+                    maxStatements,
+                    rows != null ? rows.mean() : 0,
+                    requests > 0 && budget.statements() <= target && maxStatements <= target
+                            && exceeded != null && exceeded.count() == 0));
+        }
+        return results;
+    }
+
+    private static String signIn(HttpClient client, ObjectMapper mapper, String baseUrl, String credential)
+            throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/api/auth/google"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"credential\":\"" + credential + "\"}"))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        expect(200, response);
+        JsonNode body = mapper.readTree(response.body());
+        return body.path("accessToken").asText();
+    }
+
+    private static HttpRequest.Builder authorized(String url, String accessToken) {
+        return HttpRequest.newBuilder(URI.create(url)).header("Authorization", "Bearer " + accessToken);
+    }
+
+    private static void expect(int status, HttpResponse<?> response) {
+        if (response.statusCode() != status) {
+            throw new IllegalStateException(response.request().method() + " " + response.request().uri()
+                    + " returned " + response.statusCode() + ", expected " + status);
+        }
+    }
+
+    private static byte[] multipartBody(int fileSize) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(fileSize + 256);
+        body.writeBytes(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"budget.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.writeBytes(new byte[fileSize]);
+        body.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+}
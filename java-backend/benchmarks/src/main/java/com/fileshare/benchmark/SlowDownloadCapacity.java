@@ -0,0 +1,223 @@
+package com.fileshare.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fileshare.config.ReactiveTransferConfig.ReactiveTransferServer;
+import com.fileshare.dto.FileDTO;
+import com.fileshare.service.DownloadTokenService;
+import com.fileshare.service.FileStorageService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how many concurrent slow downloads the server keeps moving with Tomcat's platform
+ * worker pool, with virtual threads ({@code threads.virtual.enabled}) and on the reactive
+ * transfer server ({@code transfer.reactive.enabled}).
+ *
+ * Every client reads its download at a fixed, low rate, so on the servlet stack each one holds
+ * its request thread for the whole transfer. The report gives, per mode, how many clients got their
+ * first byte within the run, time-to-first-byte percentiles and aggregate throughput. Virtual
+ * mode is only measured when the application was built with {@code -Pjava21} and this tool runs
+ * on Java 21.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fileshare.benchmark.SlowDownloadCapacity \
+ *     [clients=1000] [fileSizeMb=4] [bytesPerSecond=65536] [seconds=30]
+ * </pre>
+ */
+public class SlowDownloadCapacity {
+
+    private static final String RESULT_FILE = "slow-download-capacity.json";
+    private static final String VIRTUAL_THREAD_CONFIG = "com.fileshare.config.VirtualThreadConfig";
+    private static final int READ_SIZE = 4096;
+    private static final int RECEIVE_BUFFER_SIZE = 16 * 1024;
+
+    public record ModeResult(String mode, int clients, int started, int completed,
+                             long ttfbP50Millis, long ttfbP99Millis, long ttfbMaxMillis,
+                             double megabytesPerSecond) {
+    }
+
+    private record ClientResult(long ttfbNanos, long bytes, boolean completed) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int fileSize = (args.length > 1 ? Integer.parseInt(args[1]) : 4) * 1024 * 1024;
+        int bytesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 65536;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+        List<ModeResult> results = new ArrayList<>();
+        results.add(run("platform", clients, fileSize, bytesPerSecond, seconds));
+        if (virtualThreadsAvailable()) {
+            results.add(run("virtual", clients, fileSize, bytesPerSecond, seconds));
+        } else {
+            System.err.println("Skipping virtual mode: needs Java 21 and an application built with -Pjava21");
+        }
+        results.add(run("reactive", clients, fileSize, bytesPerSecond, seconds));
+
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        mapper.writeValue(Paths.get(RESULT_FILE).toFile(), results);
+        System.out.println(mapper.writeValueAsString(results));
+    }
+
+    private static ModeResult run(String mode, int clients, int fileSize, int bytesPerSecond, int seconds)
+            throws Exception {
+        boolean reactive = mode.equals("reactive");
+        try (BenchmarkEnvironment environment = BenchmarkEnvironment.start(
+                "threads.virtual.enabled=" + mode.equals("virtual"),
+                "transfer.reactive.enabled=" + reactive,
+                "transfer.reactive.port=0",
+                "file.download-token.expiry-seconds=3600")) {
+            environment.createUser("uploader");
+            byte[] content = new byte[fileSize];
+            ThreadLocalRandom.current().nextBytes(content);
+            // Downloads are one-shot, so every client gets its own file; identical content is stored once
+            FileStorageService fileStorageService = environment.getBean(FileStorageService.class);
+            DownloadTokenService downloadTokenService = environment.getBean(DownloadTokenService.class);
+            List<String> paths = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                FileDTO file = fileStorageService.storeStream(new ByteArrayInputStream(content), content.length,
+                        "slow.bin", "application/octet-stream", "uploader", 60);
+                paths.add("/api/files/download/" + downloadTokenService.createToken(file.getId()));
+            }
+            String cookie = login(environment.port(), "downloader");
+            // Same path and token on either server; only the port differs
+            int downloadPort = reactive
+                    ? environment.getBean(ReactiveTransferServer.class).port()
+                    : environment.port();
+
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            List<Future<ClientResult>> futures = new ArrayList<>(clients);
+            try {
+                for (String path : paths) {
+                    futures.add(executor.submit(() ->
+                            download(downloadPort, path, cookie, bytesPerSecond, deadline)));
+                }
+
+                List<Long> ttfbs = new ArrayList<>();
+                long bytes = 0;
+                int completed = 0;
+                for (Future<ClientResult> future : futures) {
+                    ClientResult result = future.get();
+                    bytes += result.bytes();
+                    if (result.ttfbNanos() >= 0) {
+                        ttfbs.add(TimeUnit.NANOSECONDS.toMillis(result.ttfbNanos()));
+                    }
+                    if (result.completed()) {
+                        completed++;
+                    }
+                }
+
+                double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+                Collections.sort(ttfbs);
+                return new ModeResult(mode, clients, ttfbs.size(), completed,
+                        percentile(ttfbs, 0.50), percentile(ttfbs, 0.99), percentile(ttfbs, 1.0),
+                        bytes / elapsedSeconds / (1024 * 1024));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static String login(int port, String userId) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/auth/google"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"credential\":\"" + userId + "\"}"))
+                .build();
+        HttpResponse<Void> response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.discarding());
+        String setCookie = response.headers().allValues("Set-Cookie").stream()
+                .filter(value -> value.startsWith("access_token="))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Login returned no access token cookie"));
+        return setCookie.substring(0, setCookie.indexOf(';'));
+    }
+
+    private static ClientResult download(int port, String path, String cookie, int bytesPerSecond, long deadline) {
+        long requestedAt = System.nanoTime();
+        long ttfb = -1;
+        long received = 0;
+
+        try (Socket socket = new Socket()) {
+            // A small window makes the server block on the slow reader instead of buffering the file
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nCookie: " + cookie
+                    + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[READ_SIZE];
+            int read;
+            while (System.nanoTime() < deadline && (read = in.read(buffer)) != -1) {
+                long now = System.nanoTime();
+                if (ttfb < 0) {
+                    ttfb = now - requestedAt;
+                    String statusLine = new String(buffer, 0, Math.min(read, 12), StandardCharsets.US_ASCII);
+                    if (!statusLine.endsWith(" 200")) {
+                        throw new IllegalStateException("Download failed: " + statusLine);
+                    }
+                }
+                received += read;
+
+                // Throttle to the configured rate
+                long dueNanos = received * 1_000_000_000L / bytesPerSecond;
+                long aheadNanos = dueNanos - (now - requestedAt - ttfb);
+                if (aheadNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(aheadNanos, deadline - now));
+                }
+            }
+            return new ClientResult(ttfb, received, System.nanoTime() < deadline);
+        } catch (IOException e) {
+            // Timed out or refused before the deadline
+            return new ClientResult(ttfb, received, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ClientResult(ttfb, received, false);
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static boolean virtualThreadsAvailable() {
+        if (Runtime.version().feature() < 21) {
+            return false;
+        }
+        try {
+            Class.forName(VIRTUAL_THREAD_CONFIG);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
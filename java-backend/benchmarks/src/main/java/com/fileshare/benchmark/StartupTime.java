@@ -0,0 +1,107 @@
+package com.fileshare.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures startup-to-first-request time of a server command.
+ *
+ * The command is started once per run; the time counted is from launching the process until the
+ * first HTTP response from {@code url} arrives, so JVM start, class loading, context refresh and
+ * any lazily created beans the request needs are all included. Runs are sequential and the
+ * process is stopped after each, so repeating a command with the same flags gives comparable
+ * figures. Any status counts as a response; {@code /api/auth/me} answers 401 without a token
+ * but still goes through security, the dispatcher and a controller.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fileshare.benchmark.StartupTime \
+ *     [runs=5] [url=http://localhost:8080/api/auth/me] [timeoutSeconds=120] -- command...
+ * </pre>
+ */
+public class StartupTime {
+
+    private static final String RESULT_FILE = "startup-time.json";
+    private static final long POLL_INTERVAL_MILLIS = 10;
+
+    public record Report(List<String> command, String url, long minMillis, long medianMillis,
+                         long maxMillis, List<Long> runsMillis) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = 5;
+        String url = "http://localhost:8080/api/auth/me";
+        long timeoutSeconds = 120;
+        int separator = Arrays.asList(args).indexOf("--");
+        if (separator < 0 || separator == args.length - 1) {
+            throw new IllegalArgumentException("Usage: StartupTime [runs=N] [url=U] [timeoutSeconds=S] -- command...");
+        }
+        for (String arg : Arrays.copyOfRange(args, 0, separator)) {
+            String[] parts = arg.split("=", 2);
+            switch (parts[0]) {
+                case "runs" -> runs = Integer.parseInt(parts[1]);
+                case "url" -> url = parts[1];
+                case "timeoutSeconds" -> timeoutSeconds = Long.parseLong(parts[1]);
+                default -> throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        List<String> command = List.of(Arrays.copyOfRange(args, separator + 1, args.length));
+
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url)).GET().build();
+        List<Long> results = new ArrayList<>();
+        for (int run = 0; run < runs; run++) {
+            results.add(measure(command, client, request, timeoutSeconds));
+        }
+
+        List<Long> sorted = new ArrayList<>(results);
+        sorted.sort(null);
+        Report report = new Report(command, url, sorted.get(0), sorted.get(sorted.size() / 2),
+                sorted.get(sorted.size() - 1), results);
+
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        mapper.writeValue(Paths.get(RESULT_FILE).toFile(), report);
+        System.out.println(mapper.writeValueAsString(report));
+    }
+
+    private static long measure(List<String> command, HttpClient client, HttpRequest request, long timeoutSeconds)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (System.nanoTime() < deadline) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Server exited with status " + process.exitValue() + " before responding");
+                }
+                try {
+                    client.send(request, HttpResponse.BodyHandlers.discarding());
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                } catch (IOException e) {
+                    // Not listening yet
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                }
+            }
+            throw new IllegalStateException("No response from " + request.uri() + " within " + timeoutSeconds + "s");
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.fileshare.benchmark;
+
+import com.fileshare.service.FileStorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload throughput for the multipart and raw-stream paths. Every invocation stores distinct
+ * content so the blob store has to hash and write it instead of taking the dedup shortcut.
+ *
+ * Scores are uploads per second; multiply by {@code fileSize} for bytes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreFileBenchmark {
+
+    private static final String USER_ID = "uploader";
+
+    @Param({"4096", "1048576", "16777216"})
+    public int fileSize;
+
+    // Only sizes within file.hot-tier.max-file-size are affected
+    @Param({"false", "true"})
+    public boolean hotTier;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    private BenchmarkEnvironment environment;
+    private FileStorageService fileStorageService;
+    private final Queue<Long> storedIds = new ConcurrentLinkedQueue<>();
+
+    @State(Scope.Thread)
+    public static class Content {
+
+        private byte[] bytes;
+        private long sequence;
+
+        @Setup(Level.Trial)
+        public void fill(StoreFileBenchmark benchmark) {
+            bytes = new byte[benchmark.fileSize];
+            ThreadLocalRandom.current().nextBytes(bytes);
+            sequence = ThreadLocalRandom.current().nextLong();
+        }
+
+        byte[] next() {
+            // A new prefix gives each upload a distinct digest without regenerating the body
+            ByteBuffer.wrap(bytes).putLong(sequence++);
+            return bytes;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] masterKey = new byte[32];
+        ThreadLocalRandom.current().nextBytes(masterKey);
+        environment = BenchmarkEnvironment.start("file.hot-tier.enabled=" + hotTier,
+                "file.encryption.enabled=" + encrypted,
+                "file.encryption.master-key=" + Base64.getEncoder().encodeToString(masterKey));
+        fileStorageService = environment.getBean(FileStorageService.class);
+        environment.createUser(USER_ID);
+    }
+
+    @TearDown(Level.Iteration)
+    public void releaseStoredFiles() {
+        // Keep the temp directory from growing across iterations
+        List<Long> ids = new ArrayList<>();
+        Long id;
+        while ((id = storedIds.poll()) != null) {
+            ids.add(id);
+        }
+        ids.forEach(fileId -> fileStorageService.claimDownload(fileId, USER_ID)
+                .ifPresent(fileStorageService::completeDownload));
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public void storeFile(Content content) throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "upload.bin", "application/octet-stream", content.next());
+        storedIds.add(fileStorageService.storeFile(file, USER_ID, 60).getId());
+    }
+
+    @Benchmark
+    public void storeStream(Content content) throws Exception {
+        byte[] bytes = content.next();
+        storedIds.add(fileStorageService.storeStream(new ByteArrayInputStream(bytes), bytes.length,
+                "upload.bin", "application/octet-stream", USER_ID, 60).getId());
+    }
+}
@@ -0,0 +1,125 @@
+package com.fileshare.benchmark;
+
+import com.fileshare.dto.FileDTO;
+import com.fileshare.service.FileStorageService;
+import com.fileshare.service.SecurityService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service calls behind {@code POST /api/files/verify}, in the controller's order: block
+ * check, code lookup, then either a download URL and counter reset or a recorded failure.
+ *
+ * With a single client IP the failure path quickly ends up blocked and measures the rejection
+ * cost; with a large pool it measures the bookkeeping for IPs that are still allowed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VerifyBenchmark {
+
+    @Param({"1", "100000"})
+    public int clientIps;
+
+    private BenchmarkEnvironment environment;
+    private SecurityService securityService;
+    private FileStorageService fileStorageService;
+    private TransactionTemplate transactionTemplate;
+    private String[] ips;
+    private String validCode;
+
+    @State(Scope.Thread)
+    public static class RequestContext {
+
+        @Setup(Level.Trial)
+        public void bind() {
+            // generateDownloadUrl builds the URL from the current request
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        }
+
+        @TearDown(Level.Trial)
+        public void unbind() {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        environment = BenchmarkEnvironment.start();
+        securityService = environment.getBean(SecurityService.class);
+        fileStorageService = environment.getBean(FileStorageService.class);
+        transactionTemplate = environment.getBean(TransactionTemplate.class);
+
+        environment.createUser("uploader");
+        environment.createUser("downloader");
+        byte[] content = "benchmark".getBytes(StandardCharsets.UTF_8);
+        validCode = fileStorageService.storeStream(new ByteArrayInputStream(content), content.length,
+                "verify.txt", "text/plain", "uploader", 60).getConnectionCode();
+
+        ips = new String[clientIps];
+        for (int i = 0; i < clientIps; i++) {
+            ips[i] = "10." + (i >>> 16 & 0xff) + "." + (i >>> 8 & 0xff) + "." + (i & 0xff);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public Object verifyValidCode(RequestContext context) {
+        return verify(randomIp(), validCode);
+    }
+
+    @Benchmark
+    public Object verifyUnknownCode(RequestContext context) {
+        return verify(randomIp(), "ZZZZZZ");
+    }
+
+    private Object verify(String ip, String code) {
+        if (securityService.isIpBlocked(ip)) {
+            return securityService.getRemainingTimeoutSeconds(ip);
+        }
+
+        // Open-in-view keeps a session for the whole request; mirror that for the lazy uploader
+        Optional<FileDTO> file = transactionTemplate.execute(
+                status -> fileStorageService.getFileByConnectionCode(code, "downloader"));
+        if (file.isPresent()) {
+            String downloadUrl = fileStorageService.generateDownloadUrl(file.get().getId());
+            securityService.resetFailedAttempts(ip);
+            return downloadUrl;
+        }
+
+        securityService.recordFailedAttempt(ip);
+        return null;
+    }
+
+    private String randomIp() {
+        return ips[ThreadLocalRandom.current().nextInt(ips.length)];
+    }
+}
@@ -9,4 +9,4 @@ mvn clean package -DskipTests
 
 # Run the application
 echo "Starting the application..."
-java -jar target/file-share-api-0.0.1-SNAPSHOT.jar
\ No newline at end of file
+java -jar target/file-share-api-0.0.1-SNAPSHOT-exec.jar
\ No newline at end of file
@@ -0,0 +1,22 @@
+package com.fileshare.config;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The most JDBC statements one call of a controller method may issue.
+ *
+ * Checked by {@link QueryStatsInterceptor} on every request; a request over budget is counted
+ * in {@code fileshare.db.budget.exceeded} and logged. Keep budgets tight so that a change adding
+ * queries to a hot endpoint shows up there (and fails the benchmarks' {@code QueryBudgetCheck}).
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface QueryBudget {
+
+    int statements();
+}
@@ -0,0 +1,122 @@
+package com.fileshare.config;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Wraps the data source so that statements, fetched rows and transaction time are recorded
+ * in the current {@link QueryStats}.
+ *
+ * Counting happens below Hibernate and Spring Data, so derived queries, lazy loads, flushes
+ * and plain JDBC are all seen. A batch counts as one statement: it is one round trip.
+ */
+@Component
+@ConditionalOnProperty(name = "db.query-stats.enabled", havingValue = "true")
+public class QueryCountingDataSourcePostProcessor implements BeanPostProcessor {
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof DataSource dataSource && !Proxy.isProxyClass(bean.getClass())) {
+            return wrap(DataSource.class, dataSource, (target, method, args) -> {
+                Object result = invoke(target, method, args);
+                return result instanceof Connection connection ? wrapConnection(connection) : result;
+            });
+        }
+        return bean;
+    }
+
+    private static Connection wrapConnection(Connection connection) {
+        return wrap(Connection.class, connection, (target, method, args) -> {
+            QueryStats stats = QueryStats.current();
+            switch (method.getName()) {
+                case "setAutoCommit" -> {
+                    if (stats != null && !(Boolean) args[0] && connection.getAutoCommit()) {
+                        stats.transactionStarted();
+                    }
+                }
+                case "commit", "rollback" -> {
+                    if (stats != null && (args == null || args.length == 0)) {
+                        stats.transactionEnded();
+                    }
+                }
+                default -> {
+                }
+            }
+            Object result = invoke(target, method, args);
+            if (result instanceof CallableStatement statement) {
+                return wrapStatement(CallableStatement.class, statement);
+            }
+            if (result instanceof PreparedStatement statement) {
+                return wrapStatement(PreparedStatement.class, statement);
+            }
+            if (result instanceof Statement statement) {
+                return wrapStatement(Statement.class, statement);
+            }
+            return result;
+        });
+    }
+
+    private static <T extends Statement> T wrapStatement(Class<T> type, T statement) {
+        return wrap(type, statement, (target, method, args) -> {
+            QueryStats stats = QueryStats.current();
+            if (stats != null && method.getName().startsWith("execute")) {
+                stats.statementExecuted();
+            }
+            Object result = invoke(target, method, args);
+            return result instanceof ResultSet resultSet ? wrapResultSet(resultSet) : result;
+        });
+    }
+
+    private static ResultSet wrapResultSet(ResultSet resultSet) {
+        return wrap(ResultSet.class, resultSet, (target, method, args) -> {
+            Object result = invoke(target, method, args);
+            if ("next".equals(method.getName()) && Boolean.TRUE.equals(result)) {
+                QueryStats stats = QueryStats.current();
+                if (stats != null) {
+                    stats.rowFetched();
+                }
+            }
+            return result;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Handler<T> {
+        Object handle(T target, Method method, Object[] args) throws Throwable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T wrap(Class<T> type, T target, Handler<T> handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> invoke(target, method, args);
+                };
+            }
+            return handler.handle(target, method, args);
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, invocationHandler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
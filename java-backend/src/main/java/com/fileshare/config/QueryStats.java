@@ -0,0 +1,68 @@
+package com.fileshare.config;
+
+/**
+ * JDBC work done on the current thread while handling one request.
+ *
+ * Collection is started and finished by {@link QueryStatsInterceptor}; the counting data
+ * source only records while a collection is active, so background jobs are not attributed
+ * to whichever request last ran on the thread.
+ */
+public final class QueryStats {
+
+    private static final ThreadLocal<QueryStats> CURRENT = new ThreadLocal<>();
+
+    private int statements;
+    private long rows;
+    private long transactionNanos;
+    private long transactionStart;
+
+    private QueryStats() {
+    }
+
+    static QueryStats begin() {
+        QueryStats stats = new QueryStats();
+        CURRENT.set(stats);
+        return stats;
+    }
+
+    static QueryStats end() {
+        QueryStats stats = CURRENT.get();
+        CURRENT.remove();
+        return stats;
+    }
+
+    static QueryStats current() {
+        return CURRENT.get();
+    }
+
+    void statementExecuted() {
+        statements++;
+    }
+
+    void rowFetched() {
+        rows++;
+    }
+
+    void transactionStarted() {
+        transactionStart = System.nanoTime();
+    }
+
+    void transactionEnded() {
+        if (transactionStart != 0) {
+            transactionNanos += System.nanoTime() - transactionStart;
+            transactionStart = 0;
+        }
+    }
+
+    public int statements() {
+        return statements;
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    public long transactionNanos() {
+        return transactionNanos;
+    }
+}
@@ -0,0 +1,96 @@
+package com.fileshare.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the JDBC work of each request against the controller method that handled it.
+ *
+ * Statements, fetched rows and transaction time are published per endpoint
+ * ({@code Controller.method}); a method annotated with {@link QueryBudget} that issues more
+ * statements than its budget is counted and logged.
+ */
+@Component
+@ConditionalOnProperty(name = "db.query-stats.enabled", havingValue = "true")
+@Slf4j
+public class QueryStatsInterceptor implements HandlerInterceptor {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<Method, EndpointMeters> meters = new ConcurrentHashMap<>();
+
+    private record EndpointMeters(String endpoint, int budget, DistributionSummary statements,
+                                  DistributionSummary rows, Timer transactionTime, Counter budgetExceeded) {
+    }
+
+    public QueryStatsInterceptor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (handler instanceof HandlerMethod) {
+            QueryStats.begin();
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        if (!(handler instanceof HandlerMethod handlerMethod)) {
+            return;
+        }
+        QueryStats stats = QueryStats.end();
+        if (stats == null) {
+            return;
+        }
+
+        EndpointMeters endpoint = meters.computeIfAbsent(handlerMethod.getMethod(), method -> register(handlerMethod));
+        endpoint.statements().record(stats.statements());
+        endpoint.rows().record(stats.rows());
+        endpoint.transactionTime().record(stats.transactionNanos(), TimeUnit.NANOSECONDS);
+        if (endpoint.budget() >= 0 && stats.statements() > endpoint.budget()) {
+            endpoint.budgetExceeded().increment();
+            log.warn("Query budget exceeded by {}: {} statements, budget {}",
+                    endpoint.endpoint(), stats.statements(), endpoint.budget());
+        }
+    }
+
+    private EndpointMeters register(HandlerMethod handlerMethod) {
+        String endpoint = handlerMethod.getBeanType().getSimpleName() + "." + handlerMethod.getMethod().getName();
+        QueryBudget budget = handlerMethod.getMethodAnnotation(QueryBudget.class);
+        return new EndpointMeters(
+                endpoint,
+                budget != null ? budget.statements() : -1,
+                DistributionSummary.builder("fileshare.db.statements")
+                        .description("JDBC statements issued per request")
+                        .tag("endpoint", endpoint)
+                        .register(meterRegistry),
+                DistributionSummary.builder("fileshare.db.rows")
+                        .description("Rows fetched per request")
+                        .tag("endpoint", endpoint)
+                        .register(meterRegistry),
+                Timer.builder("fileshare.db.transaction.time")
+                        .description("Time spent inside database transactions per request")
+                        .tag("endpoint", endpoint)
+                        .register(meterRegistry),
+                Counter.builder("fileshare.db.budget.exceeded")
+                        .description("Requests that issued more statements than their query budget")
+                        .tag("endpoint", endpoint)
+                        .register(meterRegistry));
+    }
+}
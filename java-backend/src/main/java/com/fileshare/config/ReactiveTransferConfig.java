@@ -0,0 +1,157 @@
+package com.fileshare.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fileshare.controller.ReactiveFileHandler;
+import com.fileshare.security.AccessTokenService;
+import com.fileshare.security.TokenRevocationList;
+import com.fileshare.service.DownloadClaims;
+import com.fileshare.service.FileStorageService;
+import com.fileshare.service.FileTransferService;
+import com.fileshare.service.ReactiveTransferService;
+import com.fileshare.service.UploadAdmissionService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.web.cors.CorsConfiguration;
+import org.springframework.web.cors.reactive.CorsWebFilter;
+import org.springframework.web.cors.reactive.UrlBasedCorsConfigurationSource;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.adapter.WebHttpHandlerBuilder;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.util.Arrays;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
+import static org.springframework.web.reactive.function.server.RequestPredicates.HEAD;
+
+/**
+ * Serves the transfer endpoints from a Reactor Netty server on {@code transfer.reactive.port},
+ * next to the servlet application, for clients that hold a transfer open for minutes.
+ *
+ * Netty's event loops move the bytes; the only other threads are the bounded blocking
+ * scheduler for database work, hashing and decoding. The rest of the API, including verify,
+ * stays on the main port. Enabled with {@code transfer.reactive.enabled=true}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "transfer.reactive.enabled", havingValue = "true")
+public class ReactiveTransferConfig {
+
+    @Value("${cors.allowed-origins}")
+    private String allowedOrigins;
+
+    @Value("${cors.allowed-methods}")
+    private String allowedMethods;
+
+    @Value("${cors.allowed-headers}")
+    private String allowedHeaders;
+
+    @Value("${cors.max-age}")
+    private long maxAge;
+
+    /**
+     * Runs a Netty server for a handler and stops it with the application context.
+     */
+    public static class ReactiveTransferServer implements SmartLifecycle {
+
+        private final HttpHandler httpHandler;
+        private final int port;
+        private final Scheduler blocking;
+        private volatile DisposableServer server;
+
+        ReactiveTransferServer(HttpHandler httpHandler, int port, Scheduler blocking) {
+            this.httpHandler = httpHandler;
+            this.port = port;
+            this.blocking = blocking;
+        }
+
+        @Override
+        public void start() {
+            server = HttpServer.create()
+                    .port(port)
+                    .handle(new ReactorHttpHandlerAdapter(httpHandler))
+                    .bindNow();
+        }
+
+        @Override
+        public void stop() {
+            if (server != null) {
+                server.disposeNow();
+                server = null;
+            }
+            blocking.dispose();
+        }
+
+        @Override
+        public boolean isRunning() {
+            return server != null;
+        }
+
+        /**
+         * The bound port, which differs from the configured one when that is 0.
+         */
+        public int port() {
+            return server != null ? server.port() : -1;
+        }
+    }
+
+    @Bean
+    public ReactiveTransferServer reactiveTransferServer(FileStorageService fileStorageService,
+                                                         DownloadClaims downloadClaims,
+                                                         FileTransferService fileTransferService,
+                                                         ReactiveTransferService reactiveTransferService,
+                                                         UploadAdmissionService uploadAdmissionService,
+                                                         AccessTokenService accessTokenService,
+                                                         TokenRevocationList revocationList,
+                                                         ObjectMapper objectMapper,
+                                                         @Value("${transfer.reactive.port}") int port,
+                                                         @Value("${transfer.reactive.blocking-threads}") int blockingThreads,
+                                                         @Value("${transfer.reactive.blocking-queue}") int blockingQueue) {
+        // Bounded in threads and queued tasks, so a burst of slow clients can't pile up blocking work
+        Scheduler blocking = Schedulers.newBoundedElastic(blockingThreads, blockingQueue, "transfer-blocking");
+        ReactiveFileHandler handler = new ReactiveFileHandler(fileStorageService, downloadClaims, fileTransferService,
+                reactiveTransferService, uploadAdmissionService, accessTokenService, revocationList, blocking);
+
+        RouterFunction<ServerResponse> routes = RouterFunctions.route()
+                .POST("/api/files/upload/stream", handler::uploadFileStream)
+                .route(GET("/api/files/download/{token}").or(HEAD("/api/files/download/{token}")), handler::downloadFile)
+                .build();
+
+        // The application's ObjectMapper, so JSON replies match the main port's
+        HandlerStrategies strategies = HandlerStrategies.builder()
+                .codecs(codecs -> {
+                    codecs.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(objectMapper));
+                    codecs.defaultCodecs().jackson2JsonDecoder(new Jackson2JsonDecoder(objectMapper));
+                })
+                .build();
+        HttpHandler httpHandler = WebHttpHandlerBuilder.webHandler(RouterFunctions.toWebHandler(routes, strategies))
+                .filter(new CorsWebFilter(corsConfigurationSource()))
+                .build();
+        return new ReactiveTransferServer(httpHandler, port, blocking);
+    }
+
+    private UrlBasedCorsConfigurationSource corsConfigurationSource() {
+        // Same origins, methods and headers as WebConfig; to browsers this port is another origin
+        CorsConfiguration configuration = new CorsConfiguration();
+        configuration.setAllowedOrigins(Arrays.asList(allowedOrigins.split(",")));
+        configuration.setAllowedMethods(Arrays.asList(allowedMethods.split(",")));
+        configuration.setAllowedHeaders(Arrays.asList(allowedHeaders.split(",")));
+        configuration.setAllowCredentials(true);
+        configuration.setMaxAge(maxAge);
+
+        UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
+        source.registerCorsConfiguration("/**", configuration);
+        return source;
+    }
+}
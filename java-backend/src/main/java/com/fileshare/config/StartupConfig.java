@@ -0,0 +1,60 @@
+package com.fileshare.config;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.lang.reflect.Method;
+
+/**
+ * Startup behaviour for the {@code production} profile and its CDS training run.
+ *
+ * With {@code spring.main.lazy-initialization}, beans are only created when first used, except
+ * those that do work at startup or on a schedule (state loading, recovery, reapers, flushes):
+ * they and whatever they depend on stay eager, so the node is fully running before traffic,
+ * while controllers and the web and JSON infrastructure behind them wait for the first request.
+ */
+@Configuration
+@Slf4j
+public class StartupConfig {
+
+    @Bean
+    static LazyInitializationExcludeFilter startupWorkExcludeFilter() {
+        return (beanName, beanDefinition, beanType) -> ApplicationRunner.class.isAssignableFrom(beanType)
+                || ApplicationListener.class.isAssignableFrom(beanType)
+                || SmartLifecycle.class.isAssignableFrom(beanType)
+                || !MethodIntrospector.selectMethods(beanType,
+                        (MethodIntrospector.MetadataLookup<Boolean>) method -> isStartupWork(method) ? true : null)
+                .isEmpty();
+    }
+
+    /**
+     * Ends a training run ({@code --startup.training-run=true}) once the application is ready,
+     * so a JVM started with {@code -XX:ArchiveClassesAtExit} writes the classes startup loaded.
+     */
+    @Bean
+    ApplicationListener<ApplicationReadyEvent> trainingRunExit(@Value("${startup.training-run}") boolean trainingRun) {
+        return event -> {
+            if (trainingRun) {
+                log.info("Training run finished; exiting");
+                System.exit(SpringApplication.exit(event.getApplicationContext()));
+            }
+        };
+    }
+
+    private static boolean isStartupWork(Method method) {
+        return method.isAnnotationPresent(PostConstruct.class)
+                || AnnotatedElementUtils.hasAnnotation(method, Scheduled.class);
+    }
+}
@@ -0,0 +1,74 @@
+package com.fileshare.config;
+
+import com.fileshare.exception.UploadRejectedException;
+import com.fileshare.service.UploadAdmissionService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.OrRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Holds upload requests at the door until {@link UploadAdmissionService} admits them, and
+ * answers 503 with {@code Retry-After} if it doesn't.
+ *
+ * Runs in the security filter chain after authorization, so only authenticated uploads queue,
+ * and before the body is read: multipart parsing happens later, in the dispatcher. The permit
+ * is held until the upload has been handled.
+ */
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    private static final RequestMatcher UPLOADS = new OrRequestMatcher(
+            new AntPathRequestMatcher("/api/files/upload", "POST"),
+            new AntPathRequestMatcher("/api/files/upload/bundle", "POST"),
+            new AntPathRequestMatcher("/api/files/upload/stream", "POST"),
+            new AntPathRequestMatcher("/api/files/uploads/*/chunks/*", "PUT"));
+
+    private final UploadAdmissionService uploadAdmissionService;
+
+    public UploadAdmissionFilter(UploadAdmissionService uploadAdmissionService) {
+        this.uploadAdmissionService = uploadAdmissionService;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !UPLOADS.matches(request);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        UploadAdmissionService.Permit permit;
+        try {
+            permit = uploadAdmissionService.acquire(request.getContentLengthLong());
+        } catch (UploadRejectedException e) {
+            reject(response, e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+
+        try (permit) {
+            chain.doFilter(request, response);
+        }
+    }
+
+    private void reject(HttpServletResponse response, UploadRejectedException e) throws IOException {
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfter().toSeconds())));
+        // Nothing of the body has been read; don't keep the connection around for the rest of it
+        response.setHeader(HttpHeaders.CONNECTION, "close");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write("{\"message\":\"" + e.getMessage() + "\"}");
+    }
+}
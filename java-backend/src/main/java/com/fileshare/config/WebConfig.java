@@ -1,13 +1,19 @@
 package com.fileshare.config;
 
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
+@RequiredArgsConstructor
 public class WebConfig implements WebMvcConfigurer {
 
+    private final ObjectProvider<QueryStatsInterceptor> queryStatsInterceptor;
+
     @Value("${cors.allowed-origins}")
     private String allowedOrigins;
     
@@ -29,4 +35,10 @@ public class WebConfig implements WebMvcConfigurer {
                 .allowCredentials(true)
                 .maxAge(maxAge);
     }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // Only present with db.query-stats.enabled
+        queryStatsInterceptor.ifAvailable(registry::addInterceptor);
+    }
 }
\ No newline at end of file
@@ -1,15 +1,24 @@
 package com.fileshare.controller;
 
+import com.fileshare.config.QueryBudget;
+import com.fileshare.dto.AuthTokenDTO;
 import com.fileshare.dto.GoogleTokenVerificationDTO;
 import com.fileshare.dto.UserDTO;
+import com.fileshare.security.AccessTokenService;
+import com.fileshare.security.AccessTokenService.AccessToken;
 import com.fileshare.security.GoogleTokenVerifier;
+import com.fileshare.security.TokenRevocationList;
 import com.fileshare.service.UserService;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 
-import jakarta.servlet.http.HttpSession;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Map;
 
 @RestController
@@ -19,18 +28,25 @@ public class AuthController {
 
     private final GoogleTokenVerifier googleTokenVerifier;
     private final UserService userService;
+    private final AccessTokenService accessTokenService;
+    private final TokenRevocationList revocationList;
 
     @PostMapping("/google")
-    public ResponseEntity<?> authenticateWithGoogle(
-            @RequestBody GoogleTokenVerificationDTO request,
-            HttpSession session) {
+    public ResponseEntity<?> authenticateWithGoogle(@RequestBody GoogleTokenVerificationDTO request) {
         try {
             UserDTO user = googleTokenVerifier.verifyGoogleToken(request.getCredential());
             
-            // Store user in session
-            session.setAttribute("userId", user.getId());
+            // Browsers get the token as a cookie, other clients send it back as a bearer header
+            AccessToken token = accessTokenService.issue(user.getId());
             
-            return ResponseEntity.ok(user);
+            return ResponseEntity.ok()
+                    .header(HttpHeaders.SET_COOKIE, accessTokenService.cookie(token).toString())
+                    .body(AuthTokenDTO.builder()
+                            .user(user)
+                            .accessToken(token.value())
+                            .tokenType("Bearer")
+                            .expiresIn(Duration.between(Instant.now(), token.expiresAt()).toSeconds())
+                            .build());
         } catch (Exception e) {
             return ResponseEntity
                     .status(HttpStatus.UNAUTHORIZED)
@@ -39,12 +55,11 @@ public class AuthController {
     }
 
     @GetMapping("/me")
-    public ResponseEntity<?> getCurrentUser(HttpSession session) {
-        String userId = (String) session.getAttribute("userId");
-        
+    @QueryBudget(statements = 1)
+    public ResponseEntity<?> getCurrentUser(@AuthenticationPrincipal String userId) {
         if (userId != null) {
             return userService.findById(userId)
-                    .map(ResponseEntity::ok)
+                    .<ResponseEntity<?>>map(ResponseEntity::ok)
                     .orElseGet(() -> ResponseEntity
                             .status(HttpStatus.UNAUTHORIZED)
                             .body(Map.of("message", "User not found")));
@@ -56,8 +71,13 @@ public class AuthController {
     }
 
     @PostMapping("/logout")
-    public ResponseEntity<?> logout(HttpSession session) {
-        session.invalidate();
-        return ResponseEntity.ok(Map.of("message", "Logged out successfully"));
+    public ResponseEntity<?> logout(Authentication authentication) {
+        // Open to unauthenticated requests so an expired cookie can still be cleared
+        if (authentication != null && authentication.getDetails() instanceof AccessToken token) {
+            revocationList.revoke(token);
+        }
+        return ResponseEntity.ok()
+                .header(HttpHeaders.SET_COOKIE, accessTokenService.clearedCookie().toString())
+                .body(Map.of("message", "Logged out successfully"));
     }
-}
\ No newline at end of file
+}
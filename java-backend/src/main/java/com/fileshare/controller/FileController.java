@@ -1,27 +1,33 @@
 package com.fileshare.controller;
 
+import com.fileshare.config.QueryBudget;
 import com.fileshare.dto.FileDTO;
 import com.fileshare.dto.FileUploadDTO;
+import com.fileshare.exception.FileTooLargeException;
 import com.fileshare.model.File;
+import com.fileshare.service.DownloadClaims;
 import com.fileshare.service.FileStorageService;
+import com.fileshare.service.FileTransferService;
+import com.fileshare.service.FileTransferService.Delivery;
+import com.fileshare.service.HotTierStore;
 import com.fileshare.service.SecurityService;
 import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import jakarta.servlet.http.HttpServletRequest;
-import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/files")
@@ -30,14 +36,17 @@ public class FileController {
 
     private final FileStorageService fileStorageService;
     private final SecurityService securityService;
+    private final FileTransferService fileTransferService;
+    private final DownloadClaims downloadClaims;
 
+    // Take a reference on the blob (or insert it when new), select it if it existed, insert the file
     @PostMapping("/upload")
+    @QueryBudget(statements = 3)
     public ResponseEntity<?> uploadFile(
             @RequestParam("file") MultipartFile file,
             @RequestParam(value = "expiryMinutes", defaultValue = "0") int expiryMinutes,
-            HttpSession session) {
+            @AuthenticationPrincipal String userId) {
         
-        String userId = (String) session.getAttribute("userId");
         if (userId == null) {
             return ResponseEntity
                     .status(HttpStatus.UNAUTHORIZED)
@@ -58,10 +67,84 @@ public class FileController {
         }
     }
 
+    @PostMapping("/upload/bundle")
+    public ResponseEntity<?> uploadBundle(
+            @RequestParam("files") List<MultipartFile> files,
+            @RequestParam(value = "name", required = false) String name,
+            @RequestParam(value = "expiryMinutes", defaultValue = "0") int expiryMinutes,
+            @AuthenticationPrincipal String userId) {
+        
+        if (userId == null) {
+            return ResponseEntity
+                    .status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("message", "Not authenticated"));
+        }
+        
+        try {
+            FileDTO bundle = fileStorageService.storeBundle(files, name, userId, expiryMinutes);
+            
+            return ResponseEntity.ok(FileUploadDTO.builder()
+                    .connectionCode(bundle.getConnectionCode())
+                    .expiryMinutes(expiryMinutes > 0 ? expiryMinutes : 10) // Default 10 minutes
+                    .build());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity
+                    .status(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("message", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity
+                    .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("message", "Failed to upload files: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping("/upload/stream")
+    public ResponseEntity<?> uploadFileStream(
+            @RequestParam("fileName") String fileName,
+            @RequestParam(value = "expiryMinutes", defaultValue = "0") int expiryMinutes,
+            @AuthenticationPrincipal String userId,
+            HttpServletRequest request) {
+        
+        if (userId == null) {
+            return ResponseEntity
+                    .status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("message", "Not authenticated"));
+        }
+        
+        // The body is the raw file content; form encodings would be consumed by parameter parsing
+        String contentType = request.getContentType();
+        if (contentType != null && (contentType.startsWith(MediaType.MULTIPART_FORM_DATA_VALUE)
+                || contentType.startsWith(MediaType.APPLICATION_FORM_URLENCODED_VALUE))) {
+            return ResponseEntity
+                    .status(HttpStatus.UNSUPPORTED_MEDIA_TYPE)
+                    .body(Map.of("message", "Send the raw file content as the request body"));
+        }
+        
+        // Reject oversized uploads before reading any of the body
+        if (request.getContentLengthLong() > fileStorageService.getMaxStreamSize()) {
+            throw new FileTooLargeException(fileStorageService.getMaxStreamSize());
+        }
+        
+        try {
+            FileDTO uploadedFile = fileStorageService.storeStream(request.getInputStream(),
+                    request.getContentLengthLong(), fileName, contentType, userId, expiryMinutes);
+            
+            return ResponseEntity.ok(FileUploadDTO.builder()
+                    .connectionCode(uploadedFile.getConnectionCode())
+                    .expiryMinutes(expiryMinutes > 0 ? expiryMinutes : 10) // Default 10 minutes
+                    .build());
+        } catch (IOException e) {
+            return ResponseEntity
+                    .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("message", "Failed to upload file: " + e.getMessage()));
+        }
+    }
+
     @PostMapping("/verify")
+    @QueryBudget(statements = 2)
     public ResponseEntity<?> verifyConnectionCode(
             @RequestParam("code") String code,
-            HttpSession session,
+            @AuthenticationPrincipal String userId,
             HttpServletRequest request) {
         
         // Get client IP for rate limiting
@@ -78,9 +161,6 @@ public class FileController {
                     ));
         }
         
-        // Get user ID from session
-        String userId = (String) session.getAttribute("userId");
-        
         // Verify the code
         return fileStorageService.getFileByConnectionCode(code, userId)
                 .map(fileDTO -> {
@@ -94,6 +174,7 @@ public class FileController {
                             "fileId", fileDTO.getId(),
                             "fileName", fileDTO.getFileName(),
                             "fileSize", fileDTO.getSize(),
+                            "fileCount", fileDTO.getFileCount(),
                             "downloadUrl", downloadUrl
                     ));
                 })
@@ -107,9 +188,15 @@ public class FileController {
                 });
     }
 
+    // Claiming the file is the only statement: it was read by /verify, and the download is
+    // finalized in the background once all of it has been sent
     @GetMapping("/download/{token}")
-    public ResponseEntity<?> downloadFile(@PathVariable String token, HttpSession session) {
-        String userId = (String) session.getAttribute("userId");
+    @QueryBudget(statements = 1)
+    public ResponseEntity<?> downloadFile(
+            @PathVariable String token,
+            @AuthenticationPrincipal String userId,
+            HttpServletRequest request,
+            HttpServletResponse response) {
         
         if (userId == null) {
             return ResponseEntity
@@ -117,56 +204,78 @@ public class FileController {
                     .body(Map.of("message", "Not authenticated"));
         }
         
-        return fileStorageService.getFileByDownloadToken(token)
-                .map(file -> {
-                    try {
-                        // Convert stored file path to a URL
-                        Path filePath = Paths.get(file.getPath());
-                        Resource resource = new UrlResource(filePath.toUri());
-                        
-                        if (resource.exists()) {
-                            // Set content disposition and file name
-                            return ResponseEntity.ok()
-                                    .contentType(MediaType.parseMediaType(file.getContentType()))
-                                    .header(HttpHeaders.CONTENT_DISPOSITION, 
-                                            "attachment; filename=\"" + file.getFileName() + "\"")
-                                    .body(resource);
-                        } else {
-                            return ResponseEntity
-                                    .status(HttpStatus.NOT_FOUND)
-                                    .body(Map.of("message", "File not found"));
-                        }
-                    } catch (MalformedURLException e) {
-                        return ResponseEntity
-                                .status(HttpStatus.INTERNAL_SERVER_ERROR)
-                                .body(Map.of("message", "Error retrieving file"));
-                    }
-                })
-                .orElseGet(() -> ResponseEntity
-                        .status(HttpStatus.NOT_FOUND)
-                        .body(Map.of("message", "Invalid or expired download link")));
-    }
-
-    @PostMapping("/downloaded")
-    public ResponseEntity<?> markFileAsDownloaded(
-            @RequestParam("fileId") Long fileId, 
-            HttpSession session) {
-        
-        String userId = (String) session.getAttribute("userId");
-        
-        if (userId == null) {
+        // HEAD only describes the file; a GET claims it with one conditional update, so of several
+        // concurrent downloads by different users exactly one gets the content
+        boolean headOnly = HttpMethod.HEAD.matches(request.getMethod());
+        Optional<DownloadClaims.Transfer> transfer = headOnly
+                ? Optional.empty()
+                : downloadClaims.open(token, userId);
+        Optional<File> fileOpt = headOnly
+                ? fileStorageService.getFileByDownloadToken(token)
+                : transfer.map(DownloadClaims.Transfer::file);
+        if (fileOpt.isEmpty()) {
             return ResponseEntity
-                    .status(HttpStatus.UNAUTHORIZED)
-                    .body(Map.of("message", "Not authenticated"));
+                    .status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("message", "Invalid or expired download link"));
         }
         
+        File file = fileOpt.get();
+        Delivery delivery = Delivery.NONE;
         try {
-            fileStorageService.markAsDownloaded(fileId, userId);
-            return ResponseEntity.ok(Map.of("message", "File marked as downloaded"));
-        } catch (Exception e) {
+            if (file.getEntryCount() != null) {
+                // Bundles are zipped on the fly; single files below keep the direct path. HEAD
+                // builds no archive, so it doesn't load the members either
+                List<File> members = headOnly ? List.of() : fileStorageService.getBundleMembers(file);
+                delivery = fileTransferService.sendBundle(file.getFileName(), members,
+                        fileStorageService::resolveContentPath, request, response);
+                return null;
+            }
+            
+            // Small files may still be held in memory
+            Optional<HotTierStore.Lease> hotContent = fileStorageService.openHotContent(file);
+            if (hotContent.isPresent()) {
+                try (HotTierStore.Lease lease = hotContent.get()) {
+                    delivery = fileTransferService.sendBuffer(lease.content(), lease.lastModified(),
+                            file.getContentType(), file.getFileName(), request, response);
+                }
+                return null;
+            }
+            
+            Path filePath = fileStorageService.resolveContentPath(file);
+            if (!Files.exists(filePath)) {
+                return ResponseEntity
+                        .status(HttpStatus.NOT_FOUND)
+                        .body(Map.of("message", "File not found"));
+            }
+            
+            // Body (full or ranged) is written directly to the response, so its delivery is known
+            delivery = fileTransferService.sendFile(filePath, file.getCodec(), file.getSize(),
+                    file.getContentType(), file.getFileName(), transfer.isPresent(), request, response);
+            return null;
+        } catch (IOException e) {
+            if (response.isCommitted()) {
+                // Client went away mid-transfer; nothing more can be sent
+                return null;
+            }
             return ResponseEntity
                     .status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("message", "Failed to update file status: " + e.getMessage()));
+                    .body(Map.of("message", "Error retrieving file"));
+        } finally {
+            // The file is finalized once what its connections delivered covers it, and released otherwise
+            Delivery delivered = delivery;
+            transfer.ifPresent(claim -> claim.close(delivered));
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Deprecated no-op: a download is finalized by the transfer itself. Kept answering 200 for
+     * one more release so older clients keep working, and removed after that.
+     */
+    @Deprecated
+    @PostMapping("/downloaded")
+    public ResponseEntity<?> markFileAsDownloaded() {
+        return ResponseEntity.ok()
+                .header("Deprecation", "true")
+                .body(Map.of("message", "Downloads are marked when the transfer completes"));
+    }
+}
@@ -0,0 +1,255 @@
+package com.fileshare.controller;
+
+import com.fileshare.dto.FileDTO;
+import com.fileshare.dto.FileUploadDTO;
+import com.fileshare.exception.UploadRejectedException;
+import com.fileshare.model.File;
+import com.fileshare.security.AccessTokenService;
+import com.fileshare.security.AccessTokenService.AccessToken;
+import com.fileshare.security.TokenRevocationList;
+import com.fileshare.service.DownloadClaims;
+import com.fileshare.service.FileStorageService;
+import com.fileshare.service.FileTransferService;
+import com.fileshare.service.FileTransferService.Delivery;
+import com.fileshare.service.HotTierStore;
+import com.fileshare.service.ReactiveTransferService;
+import com.fileshare.service.UploadAdmissionService;
+import com.fileshare.util.FileUtil;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Upload and download endpoints of the reactive transfer server, mirroring
+ * {@link FileController}'s streaming upload and download.
+ *
+ * Bodies stream between the socket and storage without a thread per transfer; database work,
+ * hashing and decoding run on the bounded {@code blocking} scheduler. As on the main port a
+ * download claims its file through {@link DownloadClaims}, reporting the whole content as
+ * delivered only once the response has been written, and nothing if the transfer ends any other
+ * way. Range requests and bundles are left to the main port.
+ */
+public class ReactiveFileHandler {
+
+    private final FileStorageService fileStorageService;
+    private final DownloadClaims downloadClaims;
+    private final FileTransferService fileTransferService;
+    private final ReactiveTransferService reactiveTransferService;
+    private final UploadAdmissionService uploadAdmissionService;
+    private final AccessTokenService accessTokenService;
+    private final TokenRevocationList revocationList;
+    private final Scheduler blocking;
+
+    public ReactiveFileHandler(FileStorageService fileStorageService,
+                               DownloadClaims downloadClaims,
+                               FileTransferService fileTransferService,
+                               ReactiveTransferService reactiveTransferService,
+                               UploadAdmissionService uploadAdmissionService,
+                               AccessTokenService accessTokenService,
+                               TokenRevocationList revocationList,
+                               Scheduler blocking) {
+        this.fileStorageService = fileStorageService;
+        this.downloadClaims = downloadClaims;
+        this.fileTransferService = fileTransferService;
+        this.reactiveTransferService = reactiveTransferService;
+        this.uploadAdmissionService = uploadAdmissionService;
+        this.accessTokenService = accessTokenService;
+        this.revocationList = revocationList;
+        this.blocking = blocking;
+    }
+
+    public Mono<ServerResponse> uploadFileStream(ServerRequest request) {
+        // No CSRF protection on this port, so uploads only accept a bearer header
+        Optional<String> userId = authenticate(request, false);
+        if (userId.isEmpty()) {
+            return message(HttpStatus.UNAUTHORIZED, "Not authenticated");
+        }
+
+        Optional<String> fileName = request.queryParam("fileName");
+        if (fileName.isEmpty()) {
+            return message(HttpStatus.BAD_REQUEST, "fileName is required");
+        }
+        int expiryMinutes;
+        try {
+            expiryMinutes = Integer.parseInt(request.queryParam("expiryMinutes").orElse("0"));
+        } catch (NumberFormatException e) {
+            return message(HttpStatus.BAD_REQUEST, "expiryMinutes must be a number");
+        }
+
+        // The body is the raw file content, as on the main port
+        Optional<MediaType> mediaType = request.headers().contentType();
+        if (mediaType.isPresent() && (MediaType.MULTIPART_FORM_DATA.includes(mediaType.get())
+                || MediaType.APPLICATION_FORM_URLENCODED.includes(mediaType.get()))) {
+            return message(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Send the raw file content as the request body");
+        }
+        String contentType = mediaType.map(MediaType::toString).orElse(null);
+
+        // The staging file is sized up front, so the length has to be known before the body
+        long length = request.headers().contentLength().orElse(-1);
+        if (length < 0) {
+            return message(HttpStatus.LENGTH_REQUIRED, "Content-Length is required");
+        }
+        if (length > fileStorageService.getMaxStreamSize()) {
+            return message(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "File exceeds the maximum allowed size of " + fileStorageService.getMaxStreamSize() + " bytes");
+        }
+
+        String originalFilename = FileUtil.sanitizeFileName(fileName.get());
+        // Admitted without queueing: a queued upload would hold a blocking thread while it waits
+        return Mono.using(() -> uploadAdmissionService.tryAcquire(length),
+                        permit -> Mono.fromCallable(() -> fileStorageService.createStagingFile(length))
+                                .subscribeOn(blocking)
+                                .flatMap(stagingFile -> reactiveTransferService.receive(request.bodyToFlux(DataBuffer.class), stagingFile, length)
+                                        // Takes the staging file over, deleting it whatever the outcome
+                                        .then(Mono.fromCallable(() -> fileStorageService.commitStagedFile(stagingFile,
+                                                        originalFilename, contentType, userId.get(), expiryMinutes))
+                                                .subscribeOn(blocking))
+                                        .doOnError(e -> FileUtil.deleteFile(stagingFile))),
+                        UploadAdmissionService.Permit::close)
+                .flatMap(uploadedFile -> ServerResponse.ok().bodyValue(uploadReply(uploadedFile, expiryMinutes)))
+                .onErrorResume(UploadRejectedException.class, e -> ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfter().toSeconds())))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(Map.of("message", e.getMessage())))
+                .onErrorResume(IllegalArgumentException.class, e -> message(HttpStatus.BAD_REQUEST, e.getMessage()))
+                .onErrorResume(IOException.class,
+                        e -> message(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to upload file: " + e.getMessage()));
+    }
+
+    public Mono<ServerResponse> downloadFile(ServerRequest request) {
+        Optional<String> userId = authenticate(request, true);
+        if (userId.isEmpty()) {
+            return message(HttpStatus.UNAUTHORIZED, "Not authenticated");
+        }
+
+        String token = request.pathVariable("token");
+        if (HttpMethod.HEAD.equals(request.method())) {
+            // HEAD only describes the file; claiming it would consume the download
+            return Mono.fromCallable(() -> fileStorageService.getFileByDownloadToken(token))
+                    .subscribeOn(blocking)
+                    .flatMap(found -> found
+                            .map(file -> headers(file, file.getSize()).build())
+                            .orElseGet(() -> message(HttpStatus.NOT_FOUND, "Invalid or expired download link")));
+        }
+        return Mono.fromCallable(() -> downloadClaims.open(token, userId.get()))
+                .subscribeOn(blocking)
+                .flatMap(claimed -> claimed
+                        .map(transfer -> sendClaimed(transfer, request))
+                        .orElseGet(() -> message(HttpStatus.NOT_FOUND, "Invalid or expired download link")));
+    }
+
+    private Mono<ServerResponse> sendClaimed(DownloadClaims.Transfer transfer, ServerRequest request) {
+        File file = transfer.file();
+        if (file.getEntryCount() != null) {
+            // Zipping is blocking stream work; the main port serves bundles
+            return close(transfer, Delivery.NONE).then(message(HttpStatus.NOT_IMPLEMENTED, "Download bundles from the main port"));
+        }
+
+        Optional<HotTierStore.Lease> hotContent = fileStorageService.openHotContent(file);
+        if (hotContent.isPresent()) {
+            HotTierStore.Lease lease = hotContent.get();
+            // The lease keeps the buffer from being reused until the write has finished
+            return send(transfer, file.getSize(), null,
+                    response -> reactiveTransferService.readBuffer(lease.content(), response.bufferFactory()),
+                    lease::close);
+        }
+
+        Path path = fileStorageService.resolveContentPath(file);
+        if (!Files.exists(path)) {
+            return close(transfer, Delivery.NONE).then(message(HttpStatus.NOT_FOUND, "File not found"));
+        }
+
+        String codec = file.getCodec();
+        if (codec == null) {
+            return send(transfer, file.getSize(), null,
+                    response -> reactiveTransferService.readStored(path, response.bufferFactory(), blocking), () -> { });
+        }
+        if (fileTransferService.acceptsEncoding(request.headers().firstHeader(HttpHeaders.ACCEPT_ENCODING), codec)) {
+            long storedLength;
+            try {
+                storedLength = reactiveTransferService.storedLength(path);
+            } catch (IOException e) {
+                return close(transfer, Delivery.NONE).then(message(HttpStatus.INTERNAL_SERVER_ERROR, "Error retrieving file"));
+            }
+            return send(transfer, storedLength, codec,
+                    response -> reactiveTransferService.readStored(path, response.bufferFactory(), blocking), () -> { });
+        }
+        return send(transfer, file.getSize(), null,
+                response -> reactiveTransferService.readDecoded(path, codec, file.getSize(), response.bufferFactory(), blocking),
+                () -> { });
+    }
+
+    /**
+     * Writes a claimed file's content and then reports it delivered, or reports nothing if the
+     * write failed or the client went away.
+     */
+    private Mono<ServerResponse> send(DownloadClaims.Transfer transfer, long length, String contentEncoding,
+                                      Function<ServerHttpResponse, Flux<DataBuffer>> content,
+                                      Runnable cleanup) {
+        ServerResponse.BodyBuilder builder = headers(transfer.file(), length);
+        if (contentEncoding != null) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+        }
+
+        return builder.build((exchange, context) -> reactiveTransferService.trackDownload(
+                Mono.defer(() -> exchange.getResponse().writeWith(content.apply(exchange.getResponse())))
+                        .then(Mono.defer(() -> close(transfer, Delivery.whole(length))))
+                        .onErrorResume(e -> close(transfer, Delivery.NONE).then(Mono.error(e)))
+                        .doOnCancel(() -> close(transfer, Delivery.NONE).subscribe())
+                        .doFinally(signal -> cleanup.run())));
+    }
+
+    private ServerResponse.BodyBuilder headers(File file, long length) {
+        ServerResponse.BodyBuilder builder = ServerResponse.ok()
+                .contentType(MediaType.parseMediaType(file.getContentType()))
+                .contentLength(length)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFileName() + "\"")
+                // Whole files only; ranges are served by the main port
+                .header(HttpHeaders.ACCEPT_RANGES, "none");
+        if (file.getCodec() != null) {
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return builder;
+    }
+
+    private Mono<Void> close(DownloadClaims.Transfer transfer, Delivery delivery) {
+        // Releasing an incomplete claim is a database update
+        return Mono.fromRunnable(() -> transfer.close(delivery)).subscribeOn(blocking).then();
+    }
+
+    private Optional<String> authenticate(ServerRequest request, boolean cookieAllowed) {
+        String value = accessTokenService.resolve(request.exchange().getRequest(), cookieAllowed);
+        return Optional.ofNullable(value)
+                .flatMap(accessTokenService::parse)
+                .filter(token -> !revocationList.isRevoked(token.tokenId()))
+                .map(AccessToken::userId);
+    }
+
+    private FileUploadDTO uploadReply(FileDTO uploadedFile, int expiryMinutes) {
+        return FileUploadDTO.builder()
+                .connectionCode(uploadedFile.getConnectionCode())
+                .expiryMinutes(expiryMinutes > 0 ? expiryMinutes : 10) // Default 10 minutes
+                .build();
+    }
+
+    private static Mono<ServerResponse> message(HttpStatus status, String message) {
+        return ServerResponse.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("message", message));
+    }
+}
@@ -0,0 +1,152 @@
+package com.fileshare.controller;
+
+import com.fileshare.dto.FileDTO;
+import com.fileshare.dto.FileUploadDTO;
+import com.fileshare.dto.UploadSessionDTO;
+import com.fileshare.service.ChunkedUploadService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/files/uploads")
+@RequiredArgsConstructor
+public class UploadSessionController {
+
+    private final ChunkedUploadService chunkedUploadService;
+
+    @PostMapping
+    public ResponseEntity<?> createSession(
+            @RequestParam("fileName") String fileName,
+            @RequestParam("size") long size,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            @RequestParam(value = "chunkSize", defaultValue = "0") long chunkSize,
+            @RequestParam(value = "expiryMinutes", defaultValue = "0") int expiryMinutes,
+            @AuthenticationPrincipal String userId) {
+
+        if (userId == null) {
+            return ResponseEntity
+                    .status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("message", "Not authenticated"));
+        }
+
+        try {
+            UploadSessionDTO uploadSession = chunkedUploadService.createSession(
+                    userId, fileName, contentType, size, chunkSize, expiryMinutes);
+            return ResponseEntity.status(HttpStatus.CREATED).body(uploadSession);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity
+                    .status(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("message", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity
+                    .status(HttpStatus.TOO_MANY_REQUESTS)
+                    .body(Map.of("message", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity
+                    .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("message", "Failed to create upload session: " + e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<?> getSession(@PathVariable String sessionId, @AuthenticationPrincipal String userId) {
+        if (userId == null) {
+            return ResponseEntity
+                    .status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("message", "Not authenticated"));
+        }
+
+        return chunkedUploadService.getSession(sessionId, userId)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity
+                        .status(HttpStatus.NOT_FOUND)
+                        .body(Map.of("message", "Upload session not found")));
+    }
+
+    @PutMapping("/{sessionId}/chunks/{index}")
+    public ResponseEntity<?> uploadChunk(
+            @PathVariable String sessionId,
+            @PathVariable int index,
+            @RequestHeader(value = "X-Chunk-SHA256", required = false) String checksum,
+            @AuthenticationPrincipal String userId,
+            HttpServletRequest request) {
+
+        if (userId == null) {
+            return ResponseEntity
+                    .status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("message", "Not authenticated"));
+        }
+
+        try {
+            return ResponseEntity.ok(chunkedUploadService.uploadChunk(
+                    sessionId, userId, index, checksum, request.getInputStream()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity
+                    .status(HttpStatus.BAD_REQUEST)
+                    .body(Map.of("message", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity
+                    .status(HttpStatus.CONFLICT)
+                    .body(Map.of("message", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity
+                    .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("message", "Failed to store chunk: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping("/{sessionId}/commit")
+    public ResponseEntity<?> commit(@PathVariable String sessionId, @AuthenticationPrincipal String userId) {
+        if (userId == null) {
+            return ResponseEntity
+                    .status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("message", "Not authenticated"));
+        }
+
+        try {
+            FileDTO uploadedFile = chunkedUploadService.commit(sessionId, userId);
+
+            return ResponseEntity.ok(FileUploadDTO.builder()
+                    .connectionCode(uploadedFile.getConnectionCode())
+                    .expiryMinutes((int) Math.round(Duration.between(
+                            uploadedFile.getCreatedAt(), uploadedFile.getExpiresAt()).getSeconds() / 60.0))
+                    .build());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity
+                    .status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("message", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity
+                    .status(HttpStatus.CONFLICT)
+                    .body(Map.of("message", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity
+                    .status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("message", "Failed to commit upload: " + e.getMessage()));
+        }
+    }
+
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<?> abort(@PathVariable String sessionId, @AuthenticationPrincipal String userId) {
+        if (userId == null) {
+            return ResponseEntity
+                    .status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("message", "Not authenticated"));
+        }
+
+        if (!chunkedUploadService.abort(sessionId, userId)) {
+            return ResponseEntity
+                    .status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("message", "Upload session not found"));
+        }
+        return ResponseEntity.ok(Map.of("message", "Upload session aborted"));
+    }
+}
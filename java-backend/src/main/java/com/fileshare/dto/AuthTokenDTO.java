@@ -0,0 +1,22 @@
+package com.fileshare.dto;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Login response: the user's fields plus the access token for clients that send it as a bearer header.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AuthTokenDTO {
+    @JsonUnwrapped
+    private UserDTO user;
+    private String accessToken;
+    private String tokenType;
+    private long expiresIn;
+}
@@ -15,6 +15,8 @@ public class FileDTO {
     private String fileName;
     private String contentType;
     private Long size;
+    // Number of files in the share; more than one for a bundle
+    private Integer fileCount;
     private String connectionCode;
     private String status;
     private String downloadUrl;
@@ -0,0 +1,22 @@
+package com.fileshare.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadSessionDTO {
+    private String sessionId;
+    private String fileName;
+    private Long size;
+    private Long chunkSize;
+    private Integer chunkCount;
+    private List<Integer> missingChunks;
+    private LocalDateTime expiresAt;
+}
@@ -0,0 +1,15 @@
+package com.fileshare.exception;
+
+public class FileTooLargeException extends RuntimeException {
+
+    private final long maxSize;
+
+    public FileTooLargeException(long maxSize) {
+        super("File size exceeds the maximum limit (" + maxSize + " bytes)");
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
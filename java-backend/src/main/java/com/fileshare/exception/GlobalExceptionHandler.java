@@ -1,5 +1,8 @@
 package com.fileshare.exception;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -10,17 +13,32 @@ import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExcep
 import java.util.Map;
 
 @ControllerAdvice
+@RequiredArgsConstructor
 public class GlobalExceptionHandler extends ResponseEntityExceptionHandler {
 
+    private final MeterRegistry meterRegistry;
+
     @ExceptionHandler(MaxUploadSizeExceededException.class)
-    public ResponseEntity<?> handleMaxSizeException() {
+    public ResponseEntity<?> handleMaxSizeException(MaxUploadSizeExceededException ex) {
+        countError(ex, HttpStatus.PAYLOAD_TOO_LARGE);
+        return ResponseEntity
+                .status(HttpStatus.PAYLOAD_TOO_LARGE)
+                .body(Map.of("message", "Upload exceeds the maximum size (2MB per file, 1000MB per request)"));
+    }
+    
+    @ExceptionHandler(FileTooLargeException.class)
+    public ResponseEntity<?> handleFileTooLargeException(FileTooLargeException ex) {
+        countError(ex, HttpStatus.PAYLOAD_TOO_LARGE);
         return ResponseEntity
                 .status(HttpStatus.PAYLOAD_TOO_LARGE)
-                .body(Map.of("message", "File size exceeds the maximum limit (2MB)"));
+                .body(Map.of("message", ex.getMessage()));
     }
     
     @ExceptionHandler(RuntimeException.class)
     public ResponseEntity<?> handleRuntimeException(RuntimeException ex) {
+        // Unexpected failures are otherwise invisible behind the generic 500
+        logger.error("Unhandled error", ex);
+        countError(ex, HttpStatus.INTERNAL_SERVER_ERROR);
         return ResponseEntity
                 .status(HttpStatus.INTERNAL_SERVER_ERROR)
                 .body(Map.of("message", ex.getMessage()));
@@ -28,8 +46,19 @@ public class GlobalExceptionHandler extends ResponseEntityExceptionHandler {
     
     @ExceptionHandler(Exception.class)
     public ResponseEntity<?> handleAllExceptions(Exception ex) {
+        logger.error("Unhandled error", ex);
+        countError(ex, HttpStatus.INTERNAL_SERVER_ERROR);
         return ResponseEntity
                 .status(HttpStatus.INTERNAL_SERVER_ERROR)
                 .body(Map.of("message", "An unexpected error occurred: " + ex.getMessage()));
     }
-}
\ No newline at end of file
+    
+    private void countError(Exception ex, HttpStatus status) {
+        Counter.builder("fileshare.errors")
+                .description("Requests that ended in an error response")
+                .tag("exception", ex.getClass().getSimpleName())
+                .tag("status", String.valueOf(status.value()))
+                .register(meterRegistry)
+                .increment();
+    }
+}
@@ -0,0 +1,29 @@
+package com.fileshare.exception;
+
+import java.time.Duration;
+
+/**
+ * An upload turned away before any of its body was read, because the server is at its limits.
+ */
+public class UploadRejectedException extends RuntimeException {
+
+    private final String reason;
+    private final Duration retryAfter;
+
+    /**
+     * @param reason short metric tag for why it was rejected
+     */
+    public UploadRejectedException(String reason, String message, Duration retryAfter) {
+        super(message);
+        this.reason = reason;
+        this.retryAfter = retryAfter;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
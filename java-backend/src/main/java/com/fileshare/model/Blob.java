@@ -0,0 +1,83 @@
+package com.fileshare.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import org.springframework.data.domain.Persistable;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "blobs")
+public class Blob implements Persistable<String> {
+
+    // Hex-encoded SHA-256 of the content
+    @Id
+    @Column(length = 64)
+    private String digest;
+
+    @Column(nullable = false)
+    private String path;
+
+    // Size of the original content
+    @Column(nullable = false)
+    private Long size;
+
+    // Content coding of the stored bytes (e.g. gzip), null when stored as is
+    @Column(length = 16)
+    private String codec;
+
+    // Bytes on disk, null for blobs stored before compression
+    @Column
+    private Long storedSize;
+
+    // Codec was chosen from the content at upload; null if it skipped that (hot tier, older blobs)
+    @Column
+    private Boolean inspected;
+
+    // Content is only held in the hot tier; the file at path is written when it is spilled
+    @Column
+    private Boolean memoryOnly;
+
+    // Number of File rows that still reference this blob
+    @Column(nullable = false)
+    private Integer refCount;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    // Rows are only ever saved new, so save() inserts without first selecting by digest
+    @Transient
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private boolean persisted;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+
+    @PostLoad
+    @PostPersist
+    protected void markPersisted() {
+        persisted = true;
+    }
+
+    @Override
+    public String getId() {
+        return digest;
+    }
+
+    @Override
+    public boolean isNew() {
+        return !persisted;
+    }
+}
@@ -12,7 +12,7 @@ import java.time.LocalDateTime;
 @NoArgsConstructor
 @AllArgsConstructor
 @Entity
-@Table(name = "files")
+@Table(name = "files", indexes = @Index(name = "idx_files_bundle_id", columnList = "bundleId"))
 public class File {
 
     @Id
@@ -25,12 +25,41 @@ public class File {
     @Column(nullable = false)
     private String contentType;
 
+    // Location of the content; shared by every File that references the same blob
     @Column(nullable = false)
     private String path;
 
+    // Content digest of the referenced Blob, null for files stored before deduplication
+    @Column(length = 64)
+    private String blobDigest;
+
     @Column(nullable = false)
     private Long size;
 
+    // Content coding of the stored bytes (e.g. gzip), null when stored as is
+    @Column(length = 16)
+    private String codec;
+
+    // Bytes on disk; equals size unless the content is compressed
+    @Column
+    private Long storedSize;
+
+    // Copied from the Blob: whether the codec was chosen from the content
+    @Column
+    private Boolean inspected;
+
+    // CRC-32 of the original content, null for files stored before it was recorded
+    @Column
+    private Long crc32;
+
+    // Number of files in a bundle; null for single files. A bundle has no content of its own
+    @Column
+    private Integer entryCount;
+
+    // Bundle this file belongs to; members are only downloadable as part of their bundle
+    @Column
+    private Long bundleId;
+
     @Column(nullable = false, unique = true)
     private String connectionCode;
 
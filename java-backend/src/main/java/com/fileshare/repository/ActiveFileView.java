@@ -0,0 +1,13 @@
+package com.fileshare.repository;
+
+import java.time.LocalDateTime;
+
+/**
+ * Projection of the columns needed to track a file that is still waiting for download.
+ */
+public interface ActiveFileView {
+    Long getId();
+    String getConnectionCode();
+    String getUploaderId();
+    LocalDateTime getExpiresAt();
+}
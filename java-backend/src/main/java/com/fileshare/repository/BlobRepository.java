@@ -0,0 +1,45 @@
+package com.fileshare.repository;
+
+import com.fileshare.model.Blob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface BlobRepository extends JpaRepository<Blob, String> {
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Blob b SET b.refCount = b.refCount + 1 WHERE b.digest = ?1")
+    int incrementRefCount(String digest);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Blob b SET b.refCount = b.refCount - 1 WHERE b.digest = ?1 AND b.refCount > 0")
+    int decrementRefCount(String digest);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM Blob b WHERE b.digest = ?1 AND b.refCount <= 0")
+    int deleteIfUnreferenced(String digest);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Blob b SET b.path = ?2 WHERE b.digest = ?1")
+    int updatePath(String digest, String path);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Blob b SET b.memoryOnly = false WHERE b.digest = ?1")
+    int markOnDisk(String digest);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM Blob b WHERE b.memoryOnly = true")
+    int deleteMemoryOnly();
+
+    @Query("SELECT COALESCE(SUM(COALESCE(b.storedSize, b.size)), 0) FROM Blob b")
+    long sumSize();
+}
@@ -4,9 +4,16 @@ import com.fileshare.model.FailedAttempt;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface FailedAttemptRepository extends JpaRepository<FailedAttempt, Long> {
     Optional<FailedAttempt> findByIp(String ip);
-}
\ No newline at end of file
+    
+    List<FailedAttempt> findByIpIn(Collection<String> ips);
+    
+    List<FailedAttempt> findByLastAttemptAtAfterOrTimeoutUntilAfter(LocalDateTime lastAttemptAt, LocalDateTime timeoutUntil);
+}
@@ -1,17 +1,93 @@
 package com.fileshare.repository;
 
 import com.fileshare.model.File;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface FileRepository extends JpaRepository<File, Long> {
     Optional<File> findByConnectionCode(String connectionCode);
     
-    @Query("SELECT COUNT(f) FROM File f WHERE f.status = 'WAITING_FOR_DOWNLOAD' AND f.expiresAt > ?1")
-    long countActiveFiles(LocalDateTime now);
-}
\ No newline at end of file
+    // The uploader is lazy, so the users table is not joined; its id comes from the foreign key
+    @Query("SELECT f FROM File f WHERE f.id = ?1 AND f.status = 'WAITING_FOR_DOWNLOAD' AND f.expiresAt > ?2")
+    Optional<File> findWaitingById(Long id, LocalDateTime now);
+    
+    // For codes registered on another node; one SELECT, the uploader's id comes from the foreign key
+    @Query("SELECT f FROM File f WHERE f.connectionCode = ?1 AND f.status = 'WAITING_FOR_DOWNLOAD' AND f.expiresAt > ?2")
+    Optional<File> findWaitingByConnectionCode(String connectionCode, LocalDateTime now);
+    
+    @Query("SELECT f FROM File f JOIN FETCH f.uploader WHERE f.id = ?1")
+    Optional<File> findWithUploaderById(Long id);
+    
+    @Query("SELECT f.id AS id, f.connectionCode AS connectionCode, f.uploader.id AS uploaderId, f.expiresAt AS expiresAt " +
+           "FROM File f WHERE f.status = 'WAITING_FOR_DOWNLOAD' AND f.expiresAt > ?1")
+    List<ActiveFileView> findActiveFiles(LocalDateTime now);
+    
+    @Query("SELECT f.id AS id, f.connectionCode AS connectionCode, f.uploader.id AS uploaderId, f.expiresAt AS expiresAt " +
+           "FROM File f WHERE f.status = ?1")
+    List<ActiveFileView> findFilesByStatus(String status);
+    
+    // Claimed files are only reclaimed once their claim is older than a download may take
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT f FROM File f WHERE f.id IN ?1 AND (f.status = 'WAITING_FOR_DOWNLOAD' " +
+           "OR (f.status = 'DOWNLOADING' AND f.expiresAt < ?2))")
+    List<File> findReclaimableByIdInForUpdate(Collection<Long> ids, LocalDateTime staleClaimExpiry);
+    
+    // The single statement that decides which of several concurrent downloads gets the file; the
+    // recipient holding the claim may take it again, for another connection of the same download
+    @Transactional
+    @Modifying
+    @Query("UPDATE File f SET f.status = 'DOWNLOADING', f.downloadedBy = ?2 " +
+           "WHERE f.id = ?1 AND f.expiresAt > ?3 AND (f.status = 'WAITING_FOR_DOWNLOAD' " +
+           "OR (f.status = 'DOWNLOADING' AND f.downloadedBy = ?2))")
+    int claimForDownload(Long id, String userId, LocalDateTime now);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE File f SET f.status = 'DOWNLOADED' WHERE f.id = ?1 AND f.status = 'DOWNLOADING'")
+    int completeDownload(Long id);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE File f SET f.status = 'WAITING_FOR_DOWNLOAD', f.downloadedBy = NULL " +
+           "WHERE f.id = ?1 AND f.status = 'DOWNLOADING'")
+    int releaseDownloadClaim(Long id);
+    
+    // Bundles count as on the volume when any of their members is
+    @Query("SELECT f.id FROM File f WHERE f.status = 'WAITING_FOR_DOWNLOAD' AND (f.path LIKE CONCAT(?1, '%') " +
+           "OR f.id IN (SELECT m.bundleId FROM File m WHERE m.bundleId IS NOT NULL AND m.path LIKE CONCAT(?1, '%'))) " +
+           "ORDER BY f.expiresAt ASC")
+    List<Long> findSoonestExpiringIdsUnder(String pathPrefix, Pageable pageable);
+    
+    // Files stored before content addressing
+    List<File> findByBlobDigestIsNullAndEntryCountIsNullAndStatusAndIdGreaterThanOrderByIdAsc(String status, Long id,
+                                                                                              Pageable pageable);
+    
+    List<File> findByBundleIdOrderByIdAsc(Long bundleId);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE File f SET f.path = ?2 WHERE f.blobDigest = ?1")
+    int updatePathByBlobDigest(String blobDigest, String path);
+    
+    @Transactional
+    @Modifying
+    @Query("UPDATE File f SET f.status = 'EXPIRED' WHERE f.status IN ('WAITING_FOR_DOWNLOAD', 'DOWNLOADING') " +
+           "AND f.blobDigest IN (SELECT b.digest FROM Blob b WHERE b.memoryOnly = true)")
+    int expirePendingFilesOfMemoryOnlyBlobs();
+    
+    @Query("SELECT DISTINCT f.bundleId FROM File f WHERE f.bundleId IS NOT NULL " +
+           "AND f.blobDigest IN (SELECT b.digest FROM Blob b WHERE b.memoryOnly = true)")
+    List<Long> findBundleIdsWithMemoryOnlyBlobs();
+}
@@ -0,0 +1,166 @@
+package com.fileshare.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+
+import java.security.Key;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Issues and validates the access tokens that authenticate API requests.
+ *
+ * A token names the user and carries a unique id and an expiry, signed with a key derived from
+ * {@code jwt.secret} for access tokens only.
+ * Any node sharing the secret can authenticate a request from the token alone; the id lets
+ * {@link TokenRevocationList} reject tokens that were logged out before they expire.
+ */
+@Component
+public class AccessTokenService {
+
+    private static final String AUDIENCE = "access";
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    @Value("${jwt.secret}")
+    private String jwtSecret;
+
+    @Value("${jwt.expiration}")
+    private long expirationMillis;
+
+    @Value("${jwt.cookie-name}")
+    private String cookieName;
+
+    @Value("${jwt.cookie-secure}")
+    private boolean cookieSecure;
+
+    private Key signingKey;
+
+    public record AccessToken(String value, String userId, String tokenId, Instant expiresAt) {
+    }
+
+    @PostConstruct
+    void init() {
+        signingKey = JwtKeys.fromSecret(jwtSecret, AUDIENCE);
+    }
+
+    public AccessToken issue(String userId) {
+        long now = System.currentTimeMillis();
+        String tokenId = UUID.randomUUID().toString();
+        Instant expiresAt = Instant.ofEpochMilli(now + expirationMillis);
+        String value = Jwts.builder()
+                .setSubject(userId)
+                .setId(tokenId)
+                .setAudience(AUDIENCE)
+                .setIssuedAt(new Date(now))
+                .setExpiration(Date.from(expiresAt))
+                .signWith(signingKey, SignatureAlgorithm.HS256)
+                .compact();
+        return new AccessToken(value, userId, tokenId, expiresAt);
+    }
+
+    public Optional<AccessToken> parse(String token) {
+        try {
+            Claims claims = Jwts.parserBuilder()
+                    .setSigningKey(signingKey)
+                    .requireAudience(AUDIENCE)
+                    .build()
+                    .parseClaimsJws(token)
+                    .getBody();
+            if (claims.getSubject() == null || claims.getId() == null) {
+                return Optional.empty();
+            }
+            return Optional.of(new AccessToken(token, claims.getSubject(), claims.getId(),
+                    claims.getExpiration().toInstant()));
+        } catch (JwtException | IllegalArgumentException e) {
+            // Bad signature, expired, malformed or not an access token
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * The raw token of a request: a bearer {@code Authorization} header, else the token cookie.
+     * A request with any other {@code Authorization} header is not authenticated by the cookie,
+     * since CSRF checks are skipped for requests that carry the header.
+     */
+    public String resolve(HttpServletRequest request) {
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization != null) {
+            return bearerToken(authorization);
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (cookieName.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The raw token of a request to the reactive transfer server. The cookie is only considered
+     * when {@code cookieAllowed}: that server has no CSRF protection, so it is left to safe methods.
+     */
+    public String resolve(ServerHttpRequest request, boolean cookieAllowed) {
+        String authorization = request.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        if (authorization != null || !cookieAllowed) {
+            return bearerToken(authorization);
+        }
+        HttpCookie cookie = request.getCookies().getFirst(cookieName);
+        return cookie != null ? cookie.getValue() : null;
+    }
+
+    /**
+     * Whether the request authenticates with a bearer header, which a browser never attaches on
+     * its own, so the request can't have been forged cross-site.
+     */
+    public boolean hasBearerToken(HttpServletRequest request) {
+        return bearerToken(request.getHeader(HttpHeaders.AUTHORIZATION)) != null;
+    }
+
+    /**
+     * The cookie that carries a token for browser clients; script can't read it.
+     */
+    public ResponseCookie cookie(AccessToken token) {
+        return cookieBuilder(token.value())
+                .maxAge(Duration.between(Instant.now(), token.expiresAt()))
+                .build();
+    }
+
+    public ResponseCookie clearedCookie() {
+        return cookieBuilder("")
+                .maxAge(0)
+                .build();
+    }
+
+    private ResponseCookie.ResponseCookieBuilder cookieBuilder(String value) {
+        return ResponseCookie.from(cookieName, value)
+                .httpOnly(true)
+                .secure(cookieSecure)
+                .sameSite("Lax")
+                .path("/");
+    }
+
+    private static String bearerToken(String header) {
+        if (header != null && header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+            String token = header.substring(BEARER_PREFIX.length()).trim();
+            return token.isEmpty() ? null : token;
+        }
+        return null;
+    }
+}
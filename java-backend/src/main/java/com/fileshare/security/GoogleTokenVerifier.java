@@ -5,18 +5,39 @@ import com.fileshare.service.UserService;
 import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
 import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken.Payload;
 import com.google.api.client.googleapis.auth.oauth2.GoogleIdTokenVerifier;
+import com.google.api.client.googleapis.auth.oauth2.GooglePublicKeysManager;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.gson.GsonFactory;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Verifies Google ID tokens with one shared verifier.
+ *
+ * The signing keys are cached by a single {@link GooglePublicKeysManager}, which honours the
+ * certificate response's Cache-Control and is refreshed in the background before it expires,
+ * so a login never waits on a certificate fetch. Verified credentials are memoized until their
+ * {@code exp} in a bounded LRU cache. The certificate URL and issuers are configurable so a
+ * local stand-in can serve keys for offline testing.
+ */
 @Component
 @RequiredArgsConstructor
+@Slf4j
 public class GoogleTokenVerifier {
 
     private final UserService userService;
@@ -24,12 +45,54 @@ public class GoogleTokenVerifier {
     @Value("${spring.security.oauth2.client.registration.google.client-id}")
     private String clientId;
 
-    public UserDTO verifyGoogleToken(String token) throws Exception {
-        GoogleIdTokenVerifier verifier = new GoogleIdTokenVerifier.Builder(
-                new NetHttpTransport(), new GsonFactory())
+    @Value("${google.id-token.certs-url}")
+    private String certsUrl;
+
+    @Value("${google.id-token.issuers}")
+    private String issuers;
+
+    @Value("${google.id-token.key-refresh-margin-seconds}")
+    private long keyRefreshMarginSeconds;
+
+    @Value("${google.id-token.cache-size}")
+    private int cacheSize;
+
+    private GooglePublicKeysManager publicKeysManager;
+    private GoogleIdTokenVerifier verifier;
+    private Map<String, VerifiedCredential> verifiedCredentials;
+
+    private record VerifiedCredential(UserDTO user, long expiresAtMillis) {
+    }
+
+    @PostConstruct
+    void init() {
+        publicKeysManager = new GooglePublicKeysManager.Builder(new NetHttpTransport(), GsonFactory.getDefaultInstance())
+                .setPublicCertsEncodedUrl(certsUrl)
+                .build();
+
+        verifier = new GoogleIdTokenVerifier.Builder(publicKeysManager)
                 .setAudience(Collections.singletonList(clientId))
+                .setIssuers(Arrays.asList(issuers.split(",")))
                 .build();
 
+        verifiedCredentials = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VerifiedCredential> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    public UserDTO verifyGoogleToken(String token) throws Exception {
+        String cacheKey = cacheKey(token);
+        VerifiedCredential cached = verifiedCredentials.get(cacheKey);
+        if (cached != null) {
+            if (cached.expiresAtMillis() > System.currentTimeMillis()) {
+                return cached.user();
+            }
+            verifiedCredentials.remove(cacheKey);
+        }
+
         try {
             GoogleIdToken idToken = verifier.verify(token);
             if (idToken != null) {
@@ -41,7 +104,13 @@ public class GoogleTokenVerifier {
                 String pictureUrl = (String) payload.get("picture");
 
                 // Create or update user in database
-                return userService.createIfNotExists(userId, name, email, pictureUrl);
+                UserDTO user = userService.createIfNotExists(userId, name, email, pictureUrl);
+
+                if (payload.getExpirationTimeSeconds() != null) {
+                    verifiedCredentials.put(cacheKey,
+                            new VerifiedCredential(user, payload.getExpirationTimeSeconds() * 1000));
+                }
+                return user;
             } else {
                 throw new RuntimeException("Invalid ID token");
             }
@@ -49,4 +118,28 @@ public class GoogleTokenVerifier {
             throw new RuntimeException("Error verifying Google token", e);
         }
     }
-}
\ No newline at end of file
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${google.id-token.key-refresh-check-ms}")
+    public void refreshSigningKeys() {
+        // Fetch ahead of expiry so verification always finds warm keys
+        long remainingMillis = publicKeysManager.getExpirationTimeMilliseconds() - System.currentTimeMillis();
+        if (remainingMillis < keyRefreshMarginSeconds * 1000) {
+            try {
+                publicKeysManager.refresh();
+            } catch (GeneralSecurityException | IOException e) {
+                // Keep the current keys; verification refreshes on demand if they run out
+                log.warn("Error refreshing Google signing keys", e);
+            }
+        }
+    }
+
+    private String cacheKey(String token) {
+        // Hash the credential so the cache doesn't hold bearer tokens verbatim
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.fileshare.security;
+
+import com.fileshare.security.AccessTokenService.AccessToken;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Authenticates a request from its access token, without any session.
+ *
+ * The principal is the user id and the details are the parsed {@link AccessToken}, which logout
+ * uses to revoke it. Requests with a missing, invalid or revoked token carry on unauthenticated.
+ * Not a bean, so it only runs inside the security filter chain.
+ */
+public class JwtAuthenticationFilter extends OncePerRequestFilter {
+
+    private final AccessTokenService accessTokenService;
+    private final TokenRevocationList revocationList;
+
+    public JwtAuthenticationFilter(AccessTokenService accessTokenService, TokenRevocationList revocationList) {
+        this.accessTokenService = accessTokenService;
+        this.revocationList = revocationList;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String value = accessTokenService.resolve(request);
+        Optional<AccessToken> token = value == null ? Optional.empty() : accessTokenService.parse(value)
+                .filter(parsed -> !revocationList.isRevoked(parsed.tokenId()));
+
+        token.ifPresent(accessToken -> {
+            UsernamePasswordAuthenticationToken authentication =
+                    UsernamePasswordAuthenticationToken.authenticated(accessToken.userId(), null, List.of());
+            authentication.setDetails(accessToken);
+            SecurityContext context = SecurityContextHolder.createEmptyContext();
+            context.setAuthentication(authentication);
+            SecurityContextHolder.setContext(context);
+        });
+
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        // Nothing is stored between dispatches; authenticate each one from the token again
+        return false;
+    }
+
+    @Override
+    protected boolean shouldNotFilterErrorDispatch() {
+        return false;
+    }
+}
@@ -0,0 +1,56 @@
+package com.fileshare.security;
+
+import io.jsonwebtoken.security.Keys;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+/**
+ * Signing keys for the tokens this application issues.
+ */
+public final class JwtKeys {
+
+    // Shipped as the default before JWT_SECRET was required; anyone can sign tokens with it
+    private static final String RETIRED_DEFAULT_SECRET = "fileShareSecretKey";
+    private static final int MIN_SECRET_BYTES = 32;
+
+    private JwtKeys() {
+    }
+
+    /**
+     * An HS256 key for one kind of token, derived from {@code jwt.secret}; every node with the
+     * same secret gets the same key, and each {@code purpose} gets a different one, so a token of
+     * one kind never verifies as another even if its audience check were dropped.
+     *
+     * @throws IllegalStateException if the secret is unset, the old default or shorter than 32 bytes,
+     *                               so a node never starts with a key others could sign with
+     */
+    public static Key fromSecret(String secret, String purpose) {
+        requireStrong(secret);
+        // HMAC-SHA256 of the purpose under the secret: a 256-bit key, as HS256 needs
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] keyBytes = mac.doFinal(("fileshare-jwt-" + purpose).getBytes(StandardCharsets.UTF_8));
+            return Keys.hmacShaKeyFor(keyBytes);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static void requireStrong(String secret) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("jwt.secret is not set; set JWT_SECRET to a random value of at least "
+                    + MIN_SECRET_BYTES + " bytes, the same on every node");
+        }
+        if (secret.equals(RETIRED_DEFAULT_SECRET)) {
+            throw new IllegalStateException("jwt.secret is the old public default; set JWT_SECRET to a random value");
+        }
+        if (secret.getBytes(StandardCharsets.UTF_8).length < MIN_SECRET_BYTES) {
+            throw new IllegalStateException("jwt.secret must be at least " + MIN_SECRET_BYTES + " bytes long");
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package com.fileshare.security;
 
+import com.fileshare.config.UploadAdmissionFilter;
+import com.fileshare.service.UploadAdmissionService;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.access.intercept.AuthorizationFilter;
+import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
 
 @Configuration
@@ -13,18 +18,31 @@ import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
 public class SecurityConfig {
 
     @Bean
-    public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
+    public SecurityFilterChain securityFilterChain(HttpSecurity http, AccessTokenService accessTokenService,
+                                                   TokenRevocationList revocationList,
+                                                   UploadAdmissionService uploadAdmissionService) throws Exception {
         http
             .csrf(csrf -> csrf
                 .csrfTokenRepository(CookieCsrfTokenRepository.withHttpOnlyFalse())
-                .ignoringRequestMatchers("/api/auth/google", "/api/files/upload"))
+                // Every upload endpoint, the same set UploadAdmissionFilter admits
+                .ignoringRequestMatchers("/api/auth/google", "/api/files/upload", "/api/files/upload/bundle",
+                        "/api/files/upload/stream", "/api/files/uploads/**")
+                // Only a bearer token then authenticates the request; resolve ignores the cookie
+                .ignoringRequestMatchers(accessTokenService::hasBearerToken))
             .authorizeHttpRequests(auth -> auth
                 .requestMatchers("/api/auth/google").permitAll()
-                .requestMatchers("/api/auth/me").permitAll()
+                .requestMatchers("/api/auth/me", "/api/auth/logout").permitAll()
+                .requestMatchers("/actuator/health", "/actuator/prometheus").permitAll()
                 .anyRequest().authenticated())
+            // The access token is the only authentication state; no session is created or read
             .sessionManagement(session -> session
-                .sessionCreationPolicy(SessionCreationPolicy.IF_REQUIRED)
-                .maximumSessions(1))
+                .sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+            // Unauthenticated requests have no principal instead of an anonymous one
+            .anonymous(AbstractHttpConfigurer::disable)
+            .addFilterBefore(new JwtAuthenticationFilter(accessTokenService, revocationList),
+                    UsernamePasswordAuthenticationFilter.class)
+            // Last, so unauthenticated uploads are refused before they can queue
+            .addFilterAfter(new UploadAdmissionFilter(uploadAdmissionService), AuthorizationFilter.class)
             .exceptionHandling(exceptionHandling -> exceptionHandling
                 .authenticationEntryPoint((request, response, authException) -> {
                     response.setStatus(401);
@@ -34,4 +52,4 @@ public class SecurityConfig {
         
         return http.build();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+package com.fileshare.security;
+
+import com.fileshare.model.RevokedToken;
+import com.fileshare.repository.RevokedTokenRepository;
+import com.fileshare.security.AccessTokenService.AccessToken;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Access tokens that were logged out before their expiry.
+ *
+ * Checks are answered from memory. Revocations are written to {@code revoked_tokens} and every
+ * node polls for rows revoked since its last sync, so a logout on one node is honoured by all of
+ * them within the sync interval. Entries are dropped once the token would have expired anyway.
+ */
+@Component
+@Slf4j
+public class TokenRevocationList {
+
+    // Polls look back this far past the last sync to cover clock skew between nodes and
+    // revocations that committed after a poll had started
+    private static final Duration SYNC_OVERLAP = Duration.ofMinutes(1);
+
+    private final RevokedTokenRepository revokedTokenRepository;
+    // Token id -> expiry in epoch millis
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private volatile LocalDateTime lastSync;
+
+    public TokenRevocationList(RevokedTokenRepository revokedTokenRepository, MeterRegistry meterRegistry) {
+        this.revokedTokenRepository = revokedTokenRepository;
+        Gauge.builder("fileshare.auth.revoked", revoked, Map::size)
+                .description("Revoked access tokens that have not expired yet")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void load() {
+        LocalDateTime now = LocalDateTime.now();
+        revokedTokenRepository.findByExpiresAtAfter(now).forEach(this::remember);
+        lastSync = now;
+    }
+
+    public boolean isRevoked(String tokenId) {
+        return revoked.containsKey(tokenId);
+    }
+
+    public void revoke(AccessToken token) {
+        revoked.put(token.tokenId(), token.expiresAt().toEpochMilli());
+        revokedTokenRepository.save(RevokedToken.builder()
+                .tokenId(token.tokenId())
+                .revokedAt(LocalDateTime.now())
+                .expiresAt(LocalDateTime.ofInstant(token.expiresAt(), ZoneId.systemDefault()))
+                .build());
+    }
+
+    @Scheduled(fixedDelayString = "${jwt.revocation.sync-interval-ms}")
+    public void sync() {
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            revokedTokenRepository.findByRevokedAtAfterAndExpiresAtAfter(lastSync.minus(SYNC_OVERLAP), now)
+                    .forEach(this::remember);
+            lastSync = now;
+        } catch (RuntimeException e) {
+            log.error("Error syncing revoked tokens", e);
+        }
+
+        long nowMillis = System.currentTimeMillis();
+        revoked.values().removeIf(expiresAt -> expiresAt <= nowMillis);
+    }
+
+    @Scheduled(fixedDelayString = "${jwt.revocation.purge-interval-ms}")
+    public void purgeExpired() {
+        try {
+            revokedTokenRepository.deleteExpired(LocalDateTime.now());
+        } catch (RuntimeException e) {
+            log.error("Error purging revoked tokens", e);
+        }
+    }
+
+    private void remember(RevokedToken token) {
+        revoked.put(token.getTokenId(), token.getExpiresAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+}
@@ -0,0 +1,68 @@
+package com.fileshare.service;
+
+import com.fileshare.repository.FileRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process index of connection codes that are still waiting for download.
+ *
+ * Rebuilt from the database at startup and kept in sync by {@link FileStorageService} and
+ * {@link ExpiryReaperService}, it answers uniqueness checks and the active count without a
+ * query, and tells code lookups which row to read. It only sees uploads made on this node, so
+ * {@link FileStorageService} looks a code it doesn't know up in the database and registers it,
+ * and drops one whose row is no longer waiting; the active count is this node's view.
+ */
+@Component
+@RequiredArgsConstructor
+public class ActiveFileRegistry {
+
+    private final FileRepository fileRepository;
+    private final Map<String, ActiveFile> filesByCode = new ConcurrentHashMap<>();
+
+    public record ActiveFile(Long fileId, String uploaderId, LocalDateTime expiresAt) {
+
+        boolean isExpired(LocalDateTime now) {
+            return !expiresAt.isAfter(now);
+        }
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        filesByCode.clear();
+        fileRepository.findActiveFiles(LocalDateTime.now()).forEach(file -> filesByCode.put(
+                file.getConnectionCode(),
+                new ActiveFile(file.getId(), file.getUploaderId(), file.getExpiresAt())));
+    }
+
+    public void register(String connectionCode, Long fileId, String uploaderId, LocalDateTime expiresAt) {
+        filesByCode.put(connectionCode, new ActiveFile(fileId, uploaderId, expiresAt));
+    }
+
+    public void remove(String connectionCode) {
+        filesByCode.remove(connectionCode);
+    }
+
+    public Optional<ActiveFile> find(String connectionCode) {
+        ActiveFile file = filesByCode.get(connectionCode);
+        if (file != null && file.isExpired(LocalDateTime.now())) {
+            filesByCode.remove(connectionCode, file);
+            return Optional.empty();
+        }
+        return Optional.ofNullable(file);
+    }
+
+    public boolean contains(String connectionCode) {
+        return filesByCode.containsKey(connectionCode);
+    }
+
+    public long activeCount() {
+        return filesByCode.size();
+    }
+}
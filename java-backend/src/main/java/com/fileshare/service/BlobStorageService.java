@@ -0,0 +1,716 @@
+package com.fileshare.service;
+
+import com.fileshare.model.Blob;
+import com.fileshare.model.File;
+import com.fileshare.repository.BlobRepository;
+import com.fileshare.repository.FileRepository;
+import com.fileshare.service.StorageVolumes.Volume;
+import com.fileshare.util.FileUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Content-addressed blob store.
+ *
+ * Uploads are stored once per distinct SHA-256 digest and reference counted. Content that can
+ * be read again (multipart uploads, committed chunked uploads, imports) is hashed first, so a
+ * repeated upload only costs the hash pass and a reference count update. New content goes
+ * through {@link CompressionService}, so a blob may be stored encoded; its codec and on-disk
+ * size are recorded with it. A streamed upload can only be read once, so it is hashed and
+ * encoded in the same pass, and a duplicate stream pays for an encoding it then discards.
+ * Files are placed on the {@link StorageVolumes}, and content is staged on the volume it will
+ * be stored on so adopting it is a rename. A blob's file is deleted when its last reference is
+ * released.
+ *
+ * Small uploads of known size go to the {@link HotTierStore} instead and are only written
+ * to disk when they are spilled to make room, at shutdown, or up front in write-through mode.
+ * Blobs still only in memory are flagged in their row; if the process dies without spilling
+ * them, their waiting files are expired at the next startup.
+ *
+ * With encryption enabled every blob file is written through {@link EncryptionService}, after
+ * compression; duplicates are found by the digest of the original content, before anything is
+ * encrypted.
+ */
+@Service
+@Slf4j
+public class BlobStorageService {
+
+    private static final int LOCK_STRIPES = 64;
+    private static final String STATUS_WAITING = "WAITING_FOR_DOWNLOAD";
+    private static final String STATUS_DOWNLOADING = "DOWNLOADING";
+    private static final String STATUS_EXPIRED = "EXPIRED";
+
+    private final BlobRepository blobRepository;
+    private final FileRepository fileRepository;
+    private final CompressionService compressionService;
+    private final StorageVolumes storageVolumes;
+    private final HotTierStore hotTierStore;
+    private final EncryptionService encryptionService;
+    private final Counter spilledCounter;
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    // Serializes create/release of the same digest so a release can't delete a blob being re-adopted
+    private final ReentrantLock[] locks = createLocks();
+
+    /**
+     * @param size       size of the original content
+     * @param codec      content coding of the stored bytes, null if stored as is
+     * @param storedSize size of the stored encoding, not counting encryption overhead
+     * @param crc32      CRC-32 of the original content
+     * @param inspected  whether the codec was chosen from the content
+     */
+    public record StoredBlob(String digest, Path path, long size, String codec, long storedSize, long crc32,
+                             boolean inspected) {
+    }
+
+    private record ContentHash(String digest, long crc32) {
+    }
+
+    /**
+     * Content written to a file: the original size and the size of what was written.
+     */
+    private record Encoded(long size, long storedSize) {
+    }
+
+    /**
+     * Content ready to be adopted, hashed and in the form it will be stored in.
+     */
+    private record StagedContent(ContentHash hash, long size, String codec, long storedSize, boolean inspected) {
+    }
+
+    @FunctionalInterface
+    private interface ContentWriter {
+        void writeTo(Path target) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+    public BlobStorageService(BlobRepository blobRepository,
+                              FileRepository fileRepository,
+                              CompressionService compressionService,
+                              StorageVolumes storageVolumes,
+                              HotTierStore hotTierStore,
+                              EncryptionService encryptionService,
+                              MeterRegistry meterRegistry) {
+        this.blobRepository = blobRepository;
+        this.fileRepository = fileRepository;
+        this.compressionService = compressionService;
+        this.storageVolumes = storageVolumes;
+        this.hotTierStore = hotTierStore;
+        this.encryptionService = encryptionService;
+
+        this.spilledCounter = Counter.builder("fileshare.hottier.spilled")
+                .description("Hot tier blobs moved to disk to make room")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.storage.stored", storedBytes, AtomicLong::get)
+                .description("Bytes held in the blob store")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void loadStoredBytes() {
+        // Content that was only in memory did not survive the last shutdown; a bundle is lost with any member
+        List<File> lostBundles = fileRepository.findAllById(fileRepository.findBundleIdsWithMemoryOnlyBlobs()).stream()
+                .filter(bundle -> STATUS_WAITING.equals(bundle.getStatus()) || STATUS_DOWNLOADING.equals(bundle.getStatus()))
+                .toList();
+        lostBundles.forEach(bundle -> bundle.setStatus(STATUS_EXPIRED));
+        fileRepository.saveAll(lostBundles);
+        lostBundles.forEach(this::releaseFileContent);
+        int lost = fileRepository.expirePendingFilesOfMemoryOnlyBlobs() + lostBundles.size();
+        blobRepository.deleteMemoryOnly();
+        if (lost > 0) {
+            log.warn("Expired {} files whose content was lost from the hot tier", lost);
+        }
+
+        // Tracked incrementally from here on, so scrapes never scan the table
+        storedBytes.set(blobRepository.sumSize());
+    }
+
+    @PreDestroy
+    public void spillHotTier() {
+        // Make every memory-only blob durable before the process exits
+        Optional<HotTierStore.Entry> entry;
+        while ((entry = hotTierStore.claimOldestForSpill()).isPresent()) {
+            if (!spill(entry.get())) {
+                // The rest stays memory-only and is expired at the next startup
+                break;
+            }
+        }
+    }
+
+    public StoredBlob storeMultipart(MultipartFile file, String contentType) throws IOException {
+        if (hotTierStore.accepts(file.getSize())) {
+            try (InputStream in = file.getInputStream()) {
+                Optional<StoredBlob> hot = storeHot(in, file.getSize());
+                if (hot.isPresent()) {
+                    return hot.get();
+                }
+            }
+        }
+
+        // Only new content is moved into the store
+        return storeCopy(file::getInputStream, null, file.getSize(), contentType,
+                target -> FileUtil.saveFile(target.getParent().toString(), target.getFileName().toString(), file));
+    }
+
+    /**
+     * @param contentLength declared size of the stream, -1 if unknown
+     */
+    public StoredBlob storeStream(InputStream in, long contentLength, long maxBytes, String contentType)
+            throws IOException {
+        if (contentLength >= 0 && contentLength <= maxBytes && hotTierStore.accepts(contentLength)) {
+            Optional<StoredBlob> hot = storeHot(in, contentLength);
+            if (hot.isPresent()) {
+                return hot.get();
+            }
+        }
+
+        // Size is unknown until the body ends; the blob stays on the volume it is staged on
+        Path stagingFile = newStagingPath(0);
+        try {
+            // The codec is chosen from the leading bytes, which are then read again from the buffer
+            BufferedInputStream content = new BufferedInputStream(in, CompressionService.SAMPLE_SIZE);
+            content.mark(CompressionService.SAMPLE_SIZE);
+            String codec = compressionService.selectCodec(contentType, contentLength, content);
+            content.reset();
+
+            StagedContent staged = stage(content, codec, maxBytes, stagingFile);
+            return store(staged, volumeOf(stagingFile, staged.hash().digest(), staged.storedSize()),
+                    target -> moveIntoPlace(stagingFile, target));
+        } finally {
+            FileUtil.deleteFile(stagingFile);
+        }
+    }
+
+    public StoredBlob storeStagedFile(Path stagingFile, String contentType) throws IOException {
+        // Like importFile, the staged file survives a failure, so the caller can retry
+        StoredBlob blob = storeCopy(() -> Files.newInputStream(stagingFile), stagingFile, Files.size(stagingFile),
+                contentType, target -> moveIntoPlace(stagingFile, target));
+        FileUtil.deleteFile(stagingFile);
+        return blob;
+    }
+
+    /**
+     * Takes a file stored before content addressing into the blob store. Unlike the upload
+     * paths the source is only removed once the blob is stored, so a failure loses nothing.
+     */
+    public StoredBlob importFile(Path file, String contentType) throws IOException {
+        StoredBlob blob = storeCopy(() -> Files.newInputStream(file), file, Files.size(file), contentType,
+                target -> moveIntoPlace(file, target));
+        // Still there if the content was already stored or was compressed
+        FileUtil.deleteFile(file);
+        return blob;
+    }
+
+    /**
+     * Moves a blob to its place in the current layout and repoints its rows. Returns the new
+     * path, or empty if it is already in place.
+     */
+    public Optional<Path> relocate(String digest) throws IOException {
+        ReentrantLock lock = lockFor(digest);
+        lock.lock();
+        try {
+            Optional<Blob> blob = blobRepository.findById(digest);
+            if (blob.isEmpty()) {
+                return Optional.empty();
+            }
+
+            Path current = Paths.get(blob.get().getPath());
+            long storedSize = blob.get().getStoredSize() != null ? blob.get().getStoredSize() : blob.get().getSize();
+            Path target = storageVolumes.blobPath(volumeOf(current, digest, storedSize), digest,
+                    fileSuffix(blob.get().getCodec(), encryptionService.isEncrypted(current)));
+            if (target.equals(current)) {
+                return Optional.empty();
+            }
+
+            // A previous run may have moved the file but not updated the rows
+            if (Files.exists(current)) {
+                Files.createDirectories(target.getParent());
+                moveIntoPlace(current, target);
+            } else if (!Files.exists(target)) {
+                throw new FileNotFoundException("Blob " + digest + " is missing at " + current);
+            }
+
+            // Files first: the blob row is what marks the relocation as done
+            fileRepository.updatePathByBlobDigest(digest, target.toString());
+            blobRepository.updatePath(digest, target.toString());
+            return Optional.of(target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void releaseFileContent(File file) {
+        if (file.getEntryCount() != null) {
+            // A bundle's content is its members'
+            fileRepository.findByBundleIdOrderByIdAsc(file.getId()).forEach(this::releaseFileContent);
+        } else if (file.getBlobDigest() != null) {
+            release(file.getBlobDigest());
+        } else {
+            // Stored before content addressing; the file is not shared
+            FileUtil.deleteFile(Paths.get(file.getPath()));
+        }
+    }
+
+    public void release(String digest) {
+        ReentrantLock lock = lockFor(digest);
+        lock.lock();
+        try {
+            blobRepository.decrementRefCount(digest);
+            Optional<Blob> blob = blobRepository.findById(digest);
+            if (blobRepository.deleteIfUnreferenced(digest) > 0 && blob.isPresent()) {
+                Path path = Paths.get(blob.get().getPath());
+                storedBytes.addAndGet(-(blob.get().getStoredSize() != null ? blob.get().getStoredSize() : sizeOf(path)));
+                hotTierStore.remove(digest);
+                FileUtil.deleteFile(path);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read access to a blob's content if it is held in memory; the lease must be closed.
+     */
+    public Optional<HotTierStore.Lease> openHot(String digest) {
+        return hotTierStore.open(digest);
+    }
+
+    /**
+     * A new staging file on the volume picked for content of the given size.
+     */
+    public Path newStagingPath(long size) throws IOException {
+        String name = UUID.randomUUID().toString();
+        return stagingPath(storageVolumes.select(name, size), name);
+    }
+
+    private Path stagingPath(Volume volume, String name) throws IOException {
+        Path stagingDir = storageVolumes.stagingDir(volume);
+        if (!Files.exists(stagingDir)) {
+            Files.createDirectories(stagingDir);
+        }
+        return stagingDir.resolve(name + ".part");
+    }
+
+    private Optional<StoredBlob> storeHot(InputStream in, long size) throws IOException {
+        ByteBuffer buffer = allocateHot((int) size);
+        if (buffer == null) {
+            return Optional.empty();
+        }
+
+        boolean adopted = false;
+        try {
+            // Read straight into direct memory; the channel is not closed so the caller keeps the stream
+            ReadableByteChannel channel = Channels.newChannel(in);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("Upload ended after " + buffer.position() + " of " + size + " bytes");
+                }
+            }
+            buffer.flip();
+
+            MessageDigest messageDigest = newSha256Digest();
+            messageDigest.update(buffer.duplicate());
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            ContentHash hash = new ContentHash(HexFormat.of().formatHex(messageDigest.digest()), crc.getValue());
+            String digest = hash.digest();
+
+            Optional<StoredBlob> existing = reference(hash);
+            if (existing.isPresent()) {
+                return existing;
+            }
+
+            ReentrantLock lock = lockFor(digest);
+            boolean contended = !lock.tryLock();
+            if (contended) {
+                lock.lock();
+            }
+            try {
+                if (contended) {
+                    // Waited for a concurrent upload of the same content, which has likely stored it
+                    existing = reference(hash);
+                    if (existing.isPresent()) {
+                        return existing;
+                    }
+                }
+
+                Path target = storageVolumes.blobPath(storageVolumes.select(digest, size), digest,
+                        fileSuffix(null, encryptionService.isEnabled()));
+                boolean writeThrough = hotTierStore.isWriteThrough();
+                long createdAt = System.currentTimeMillis();
+                if (writeThrough) {
+                    writeBuffer(buffer, target, createdAt);
+                }
+                try {
+                    blobRepository.save(Blob.builder()
+                            .digest(digest)
+                            .path(target.toString())
+                            .size(size)
+                            .storedSize(size)
+                            .inspected(false)
+                            .memoryOnly(!writeThrough)
+                            .refCount(1)
+                            .build());
+                } catch (DataIntegrityViolationException e) {
+                    // Another node stored the same content concurrently; use its copy
+                    StoredBlob stored = reference(hash).orElseThrow(() -> e);
+                    if (writeThrough && !stored.path().equals(target)) {
+                        FileUtil.deleteFile(target);
+                    }
+                    return Optional.of(stored);
+                }
+
+                hotTierStore.put(digest, buffer, writeThrough);
+                adopted = true;
+                storedBytes.addAndGet(size);
+                return Optional.of(new StoredBlob(digest, target, size, null, size, hash.crc32(), false));
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (!adopted) {
+                hotTierStore.free(buffer);
+            }
+        }
+    }
+
+    private ByteBuffer allocateHot(int size) {
+        ByteBuffer buffer;
+        while ((buffer = hotTierStore.tryAllocate(size)) == null) {
+            // Over budget: move the oldest blobs to disk until there is room
+            Optional<HotTierStore.Entry> victim = hotTierStore.claimOldestForSpill();
+            if (victim.isEmpty() || !spill(victim.get())) {
+                return null;
+            }
+        }
+        return buffer;
+    }
+
+    private boolean spill(HotTierStore.Entry entry) {
+        ReentrantLock lock = lockFor(entry.digest());
+        lock.lock();
+        try {
+            // Released since it was claimed; release already dropped it
+            if (!hotTierStore.isCurrent(entry)) {
+                return true;
+            }
+
+            if (!hotTierStore.isOnDisk(entry)) {
+                Optional<Blob> blob = blobRepository.findById(entry.digest());
+                if (blob.isPresent()) {
+                    writeBuffer(entry.content(), Paths.get(blob.get().getPath()), entry.createdAtMillis());
+                    blobRepository.markOnDisk(entry.digest());
+                }
+                spilledCounter.increment();
+            }
+            hotTierStore.evict(entry);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // Keep serving it from memory; new small uploads go to disk meanwhile
+            hotTierStore.cancelSpill(entry);
+            log.error("Error spilling blob {} to disk", entry.digest(), e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBuffer(ByteBuffer content, Path target, long lastModified) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        if (encryptionService.isEncrypted(target)) {
+            // Hot tier blobs are small; a heap copy is cheaper than streaming from direct memory
+            byte[] bytes = new byte[content.remaining()];
+            content.duplicate().get(bytes);
+            encryptionService.encrypt(new ByteArrayInputStream(bytes), partial);
+        } else {
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer source = content.duplicate();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+        }
+        // Same validators as while it was served from memory
+        Files.setLastModifiedTime(partial, FileTime.fromMillis(lastModified));
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stores content that can be read more than once. It is hashed first and only written if it
+     * is new: as is with {@code rawWriter}, or compressed and encrypted into a staging file.
+     *
+     * @param origin the file the content is read from, if it is one
+     */
+    private StoredBlob storeCopy(ContentSource source, Path origin, long size, String contentType,
+                                 ContentWriter rawWriter) throws IOException {
+        ContentHash hash;
+        try (InputStream in = source.open()) {
+            hash = hash(in);
+        }
+        // Known content: just take another reference, nothing is encoded or written
+        Optional<StoredBlob> existing = reference(hash);
+        if (existing.isPresent()) {
+            return existing.get();
+        }
+
+        String codec;
+        try (InputStream in = source.open()) {
+            codec = compressionService.selectCodec(contentType, size, in);
+        }
+        boolean inspected = compressionService.inspects(size);
+        if (codec == null && !encryptionService.isEnabled()) {
+            Volume volume = origin != null ? volumeOf(origin, hash.digest(), size)
+                    : storageVolumes.select(hash.digest(), size);
+            return adopt(new StagedContent(hash, size, null, size, inspected), volume, rawWriter);
+        }
+
+        // The blob stays on the volume its encoding is staged on
+        Path encodedFile = newStagingPath(size);
+        try {
+            Encoded encoded;
+            try (InputStream in = source.open()) {
+                encoded = encode(in, codec, Long.MAX_VALUE, encodedFile);
+            }
+            return adopt(new StagedContent(hash, size, codec, encoded.storedSize(), inspected),
+                    volumeOf(encodedFile, hash.digest(), encoded.storedSize()),
+                    target -> moveIntoPlace(encodedFile, target));
+        } finally {
+            FileUtil.deleteFile(encodedFile);
+        }
+    }
+
+    /**
+     * Reads content that can't be read again once, hashing it while it is written to
+     * {@code target} encoded with {@code codec} and encrypted if enabled.
+     */
+    private StagedContent stage(InputStream in, String codec, long maxBytes, Path target) throws IOException {
+        MessageDigest messageDigest = newSha256Digest();
+        CRC32 crc = new CRC32();
+        Encoded encoded = encode(new CheckedInputStream(new DigestInputStream(in, messageDigest), crc), codec,
+                maxBytes, target);
+        ContentHash hash = new ContentHash(HexFormat.of().formatHex(messageDigest.digest()), crc.getValue());
+        return new StagedContent(hash, encoded.size(), codec, encoded.storedSize(),
+                compressionService.inspects(encoded.size()));
+    }
+
+    /**
+     * Writes the content to {@code target} encoded with {@code codec} and encrypted if enabled.
+     * Content the sample misjudged stays encoded: deflate only adds a few bytes per block to it,
+     * which is cheaper than another pass.
+     */
+    private Encoded encode(InputStream in, String codec, long maxBytes, Path target) throws IOException {
+        long size;
+        CountingOutputStream stored;
+        try (OutputStream file = encryptionService.isEnabled() ? encryptionService.encrypting(target)
+                : Files.newOutputStream(target, StandardOpenOption.CREATE_NEW)) {
+            stored = new CountingOutputStream(file);
+            try (OutputStream out = codec != null ? compressionService.compressing(codec, stored) : stored) {
+                size = FileUtil.copyBounded(in, out, maxBytes);
+            }
+        }
+        return new Encoded(size, stored.count());
+    }
+
+    private StoredBlob store(StagedContent staged, Volume volume, ContentWriter writer) throws IOException {
+        // Known content: just take another reference, no write needed
+        Optional<StoredBlob> existing = reference(staged.hash());
+        if (existing.isPresent()) {
+            return existing.get();
+        }
+        return adopt(staged, volume, writer);
+    }
+
+    private StoredBlob adopt(StagedContent staged, Volume volume, ContentWriter writer) throws IOException {
+        ContentHash hash = staged.hash();
+        String digest = hash.digest();
+        String codec = staged.codec();
+        Path target = storageVolumes.blobPath(volume, digest, fileSuffix(codec, encryptionService.isEnabled()));
+        ReentrantLock lock = lockFor(digest);
+        boolean contended = !lock.tryLock();
+        if (contended) {
+            lock.lock();
+        }
+        try {
+            if (contended) {
+                // Waited for a concurrent upload of the same content, which has likely stored it
+                Optional<StoredBlob> existing = reference(hash);
+                if (existing.isPresent()) {
+                    return existing.get();
+                }
+            }
+
+            Files.createDirectories(target.getParent());
+            writer.writeTo(target);
+            try {
+                blobRepository.save(Blob.builder()
+                        .digest(digest)
+                        .path(target.toString())
+                        .size(staged.size())
+                        .codec(codec)
+                        .storedSize(staged.storedSize())
+                        .inspected(staged.inspected())
+                        .refCount(1)
+                        .build());
+                storedBytes.addAndGet(staged.storedSize());
+                return new StoredBlob(digest, target, staged.size(), codec, staged.storedSize(), hash.crc32(),
+                        staged.inspected());
+            } catch (DataIntegrityViolationException e) {
+                // Another node stored the same content concurrently; use its copy
+                StoredBlob stored = reference(hash).orElseThrow(() -> e);
+                if (!stored.path().equals(target)) {
+                    FileUtil.deleteFile(target);
+                }
+                return stored;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Optional<StoredBlob> reference(ContentHash hash) {
+        if (blobRepository.incrementRefCount(hash.digest()) == 0) {
+            return Optional.empty();
+        }
+        // The reference just taken keeps the row from being deleted
+        return blobRepository.findById(hash.digest()).map(blob -> new StoredBlob(
+                blob.getDigest(),
+                Paths.get(blob.getPath()),
+                blob.getSize(),
+                blob.getCodec(),
+                blob.getStoredSize() != null ? blob.getStoredSize() : blob.getSize(),
+                hash.crc32(),
+                Boolean.TRUE.equals(blob.getInspected())));
+    }
+
+    private String fileSuffix(String codec, boolean encrypted) {
+        return compressionService.fileSuffix(codec) + encryptionService.fileSuffix(encrypted);
+    }
+
+    private void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // Different file systems (only when migrating files from outside the volumes):
+            // copy next to the target, then rename so the blob never appears half written
+            Path partial = target.resolveSibling(target.getFileName() + ".part");
+            Files.copy(source, partial, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(source);
+        }
+    }
+
+    private Volume volumeOf(Path path, String digest, long size) {
+        // Files outside every volume (legacy upload directory) are placed like new content
+        return storageVolumes.volumeOf(path).orElseGet(() -> storageVolumes.select(digest, size));
+    }
+
+    private long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private ContentHash hash(InputStream in) throws IOException {
+        MessageDigest messageDigest = newSha256Digest();
+        CRC32 crc = new CRC32();
+        try (InputStream digestStream = new CheckedInputStream(new DigestInputStream(in, messageDigest), crc)) {
+            digestStream.transferTo(OutputStream.nullOutputStream());
+        }
+        return new ContentHash(HexFormat.of().formatHex(messageDigest.digest()), crc.getValue());
+    }
+
+    private MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private ReentrantLock lockFor(String digest) {
+        return locks[Math.floorMod(digest.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Counts what passes through, to know the size of an encoding without asking the file.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long count() {
+            return count;
+        }
+    }
+
+    private static ReentrantLock[] createLocks() {
+        ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+}
@@ -0,0 +1,302 @@
+package com.fileshare.service;
+
+import com.fileshare.dto.FileDTO;
+import com.fileshare.dto.UploadSessionDTO;
+import com.fileshare.exception.FileTooLargeException;
+import com.fileshare.util.FileUtil;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable uploads: the client opens a session, sends numbered chunks (in any order and
+ * in parallel), asks which chunks are still missing and finally commits the session.
+ *
+ * Each chunk is written at its own offset of a pre-sized staging file, so a retried chunk
+ * only resends that chunk. The connection code is only allocated on commit; a commit that
+ * fails leaves the session and its chunks in place, so it can be retried. Each user may hold
+ * at most {@code max-sessions-per-user} open sessions.
+ */
+@Service
+@RequiredArgsConstructor
+public class ChunkedUploadService {
+
+    private static final int MAX_CHUNK_COUNT = 10_000;
+
+    private final FileStorageService fileStorageService;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    // Open sessions per user; updated with sessions, so the cap can't be raced past
+    private final Map<String, Integer> sessionCounts = new ConcurrentHashMap<>();
+
+    @Value("${file.upload.chunked.max-size}")
+    private DataSize maxSize;
+
+    @Value("${file.upload.chunked.default-chunk-size}")
+    private DataSize defaultChunkSize;
+
+    @Value("${file.upload.chunked.max-chunk-size}")
+    private DataSize maxChunkSize;
+
+    @Value("${file.upload.chunked.session-expiry-minutes}")
+    private int sessionExpiryMinutes;
+
+    @Value("${file.upload.chunked.max-sessions-per-user}")
+    private int maxSessionsPerUser;
+
+    public UploadSessionDTO createSession(String userId, String fileName, String contentType, long size,
+                                          long chunkSize, int expiryMinutes) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("File size must be positive");
+        }
+        if (size > maxSize.toBytes()) {
+            throw new FileTooLargeException(maxSize.toBytes());
+        }
+
+        long effectiveChunkSize = chunkSize > 0 ? chunkSize : defaultChunkSize.toBytes();
+        if (effectiveChunkSize > maxChunkSize.toBytes()) {
+            throw new IllegalArgumentException("Chunk size exceeds the maximum of " + maxChunkSize.toBytes() + " bytes");
+        }
+
+        long chunkCount = (size + effectiveChunkSize - 1) / effectiveChunkSize;
+        if (chunkCount > MAX_CHUNK_COUNT) {
+            throw new IllegalArgumentException("Too many chunks; use a larger chunk size");
+        }
+
+        // Each session pins a pre-sized staging file, so a user can't open them without bound
+        sessionCounts.compute(userId, (id, open) -> {
+            int count = open != null ? open : 0;
+            if (count >= maxSessionsPerUser) {
+                throw new IllegalStateException("Too many open upload sessions");
+            }
+            return count + 1;
+        });
+
+        Path stagingPath;
+        try {
+            stagingPath = fileStorageService.createStagingFile(size);
+        } catch (IOException | RuntimeException e) {
+            releaseSessionCount(userId);
+            throw e;
+        }
+
+        UploadSession session = new UploadSession(
+                UUID.randomUUID().toString(),
+                userId,
+                FileUtil.sanitizeFileName(fileName),
+                contentType,
+                size,
+                effectiveChunkSize,
+                (int) chunkCount,
+                expiryMinutes,
+                stagingPath,
+                LocalDateTime.now().plusMinutes(sessionExpiryMinutes));
+        sessions.put(session.id, session);
+
+        return mapToDTO(session);
+    }
+
+    public Optional<UploadSessionDTO> getSession(String sessionId, String userId) {
+        return findSession(sessionId, userId).map(this::mapToDTO);
+    }
+
+    public UploadSessionDTO uploadChunk(String sessionId, String userId, int index, String checksum,
+                                        InputStream in) throws IOException {
+        UploadSession session = findSession(sessionId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Upload session not found"));
+
+        if (index < 0 || index >= session.chunkCount) {
+            throw new IllegalArgumentException("Chunk index out of range");
+        }
+        if (checksum == null || checksum.isBlank()) {
+            throw new IllegalArgumentException("Chunk checksum is required");
+        }
+
+        session.beginChunk(index);
+        boolean valid = false;
+        try {
+            long position = index * session.chunkSize;
+            long length = Math.min(session.chunkSize, session.size - position);
+            String actual = fileStorageService.writeChunk(session.stagingPath, position, length, in);
+            valid = actual.equalsIgnoreCase(checksum.trim());
+        } finally {
+            session.endChunk(index, valid);
+        }
+
+        if (!valid) {
+            throw new IllegalArgumentException("Checksum mismatch for chunk " + index);
+        }
+        return mapToDTO(session);
+    }
+
+    public FileDTO commit(String sessionId, String userId) throws IOException {
+        UploadSession session = findSession(sessionId, userId)
+                .orElseThrow(() -> new IllegalArgumentException("Upload session not found"));
+
+        // While committing, the session can't be aborted or purged underneath the commit
+        session.markCommitting();
+        try {
+            FileDTO file = fileStorageService.commitStagedFile(session.stagingPath, session.fileName,
+                    session.contentType, userId, session.expiryMinutes);
+            remove(session);
+            return file;
+        } catch (IOException | RuntimeException e) {
+            if (Files.exists(session.stagingPath)) {
+                // The chunks are still staged; let the client retry the commit
+                session.commitFailed();
+            } else {
+                // Failed after the staged file was taken into the store; nothing left to retry
+                remove(session);
+            }
+            throw e;
+        }
+    }
+
+    public boolean abort(String sessionId, String userId) {
+        Optional<UploadSession> session = findSession(sessionId, userId);
+        session.ifPresent(this::discard);
+        return session.isPresent();
+    }
+
+    @Scheduled(fixedDelayString = "${file.upload.chunked.cleanup-interval-ms}")
+    public void purgeExpiredSessions() {
+        LocalDateTime now = LocalDateTime.now();
+        sessions.values().stream()
+                .filter(session -> session.expiresAt.isBefore(now))
+                .forEach(this::discard);
+    }
+
+    private Optional<UploadSession> findSession(String sessionId, String userId) {
+        return Optional.ofNullable(sessions.get(sessionId))
+                .filter(session -> session.userId.equals(userId))
+                .filter(session -> session.expiresAt.isAfter(LocalDateTime.now()));
+    }
+
+    private void discard(UploadSession session) {
+        if (session.markDiscarded() && remove(session)) {
+            FileUtil.deleteFile(session.stagingPath);
+        }
+    }
+
+    private boolean remove(UploadSession session) {
+        if (!sessions.remove(session.id, session)) {
+            return false;
+        }
+        releaseSessionCount(session.userId);
+        return true;
+    }
+
+    private void releaseSessionCount(String userId) {
+        sessionCounts.computeIfPresent(userId, (id, open) -> open > 1 ? open - 1 : null);
+    }
+
+    private UploadSessionDTO mapToDTO(UploadSession session) {
+        return UploadSessionDTO.builder()
+                .sessionId(session.id)
+                .fileName(session.fileName)
+                .size(session.size)
+                .chunkSize(session.chunkSize)
+                .chunkCount(session.chunkCount)
+                .missingChunks(session.missingChunks())
+                .expiresAt(session.expiresAt)
+                .build();
+    }
+
+    private static class UploadSession {
+        private final String id;
+        private final String userId;
+        private final String fileName;
+        private final String contentType;
+        private final long size;
+        private final long chunkSize;
+        private final int chunkCount;
+        private final int expiryMinutes;
+        private final Path stagingPath;
+        private final LocalDateTime expiresAt;
+
+        // Guarded by this
+        private final BitSet received = new BitSet();
+        private final Set<Integer> writing = new HashSet<>();
+        private boolean committing;
+        private boolean discarded;
+
+        UploadSession(String id, String userId, String fileName, String contentType, long size, long chunkSize,
+                      int chunkCount, int expiryMinutes, Path stagingPath, LocalDateTime expiresAt) {
+            this.id = id;
+            this.userId = userId;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.expiryMinutes = expiryMinutes;
+            this.stagingPath = stagingPath;
+            this.expiresAt = expiresAt;
+        }
+
+        synchronized void beginChunk(int index) {
+            if (committing || discarded) {
+                throw new IllegalStateException("Upload session is already committed");
+            }
+            // Two concurrent writers of the same chunk could interleave bytes at the same offsets
+            if (!writing.add(index)) {
+                throw new IllegalStateException("Chunk " + index + " is already being uploaded");
+            }
+            received.clear(index);
+        }
+
+        synchronized void endChunk(int index, boolean valid) {
+            writing.remove(index);
+            received.set(index, valid);
+        }
+
+        synchronized void markCommitting() {
+            if (committing || discarded) {
+                throw new IllegalStateException("Upload session is already committed");
+            }
+            if (!writing.isEmpty() || received.cardinality() != chunkCount) {
+                throw new IllegalStateException("Upload session has missing chunks");
+            }
+            committing = true;
+        }
+
+        synchronized void commitFailed() {
+            committing = false;
+        }
+
+        /**
+         * False if a commit is under way, which then owns the staging file.
+         */
+        synchronized boolean markDiscarded() {
+            if (committing) {
+                return false;
+            }
+            discarded = true;
+            return true;
+        }
+
+        synchronized List<Integer> missingChunks() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = received.nextClearBit(0); i < chunkCount; i = received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        }
+    }
+}
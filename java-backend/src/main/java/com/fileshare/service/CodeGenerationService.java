@@ -1,19 +1,20 @@
 package com.fileshare.service;
 
-import com.fileshare.repository.FileRepository;
 import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.time.LocalDateTime;
 
 @Service
 @RequiredArgsConstructor
 public class CodeGenerationService {
 
-    private final FileRepository fileRepository;
-    private final SecureRandom random = new SecureRandom();
+    private final ActiveFileRegistry activeFileRegistry;
+    // DRBG generates in memory; the platform default (NativePRNG) reads /dev/urandom while holding
+    // its monitor, which pins the carrier when called from a virtual thread
+    private final SecureRandom random = createRandom();
     
     @Value("${file.connection-code.length.min}")
     private int minCodeLength;
@@ -26,6 +27,9 @@ public class CodeGenerationService {
     
     private static final String CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
     
+    // Largest multiple of the alphabet size that fits in a byte; higher values would bias the modulo
+    private static final int UNBIASED_BYTE_LIMIT = 256 - 256 % CHARACTERS.length();
+    
     public String generateUniqueCode() {
         int codeLength = calculateCodeLength();
         String code;
@@ -36,8 +40,8 @@ public class CodeGenerationService {
         return code;
     }
     
-    private int calculateCodeLength() {
-        long activeFileCount = fileRepository.countActiveFiles(LocalDateTime.now());
+    public int calculateCodeLength() {
+        long activeFileCount = activeFileRegistry.activeCount();
         
         // Start with minimum length
         int length = minCodeLength;
@@ -56,13 +60,30 @@ public class CodeGenerationService {
     
     private String generateRandomCode(int length) {
         StringBuilder code = new StringBuilder(length);
-        for (int i = 0; i < length; i++) {
-            code.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+        // Draw the randomness for a whole code in one call; twice the length covers the rejected bytes
+        byte[] bytes = new byte[length * 2];
+        while (code.length() < length) {
+            random.nextBytes(bytes);
+            for (int i = 0; i < bytes.length && code.length() < length; i++) {
+                int value = bytes[i] & 0xff;
+                if (value < UNBIASED_BYTE_LIMIT) {
+                    code.append(CHARACTERS.charAt(value % CHARACTERS.length()));
+                }
+            }
         }
         return code.toString();
     }
     
     private boolean codeExists(String code) {
-        return fileRepository.findByConnectionCode(code).isPresent();
+        // Only live codes are tracked; a clash with an old row is caught by the unique constraint on insert
+        return activeFileRegistry.contains(code);
+    }
+    
+    private static SecureRandom createRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("DRBG not available", e);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,223 @@
+package com.fileshare.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Chooses and applies the codec a blob is stored with.
+ *
+ * Text-like types are gzip-compressed and types that are compressed already are stored as
+ * they are. Leading bytes that match a compressed format's signature win over the declared
+ * type; for types that say neither, a sample of the leading bytes is trial-compressed.
+ * Codec names are HTTP content-coding tokens so stored bytes can be served as they are.
+ */
+@Service
+public class CompressionService {
+
+    public static final String GZIP = "gzip";
+
+    // Leading bytes selectCodec reads at most
+    public static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Trial compression must save at least 10% for unknown types to be compressed
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private static final Set<String> COMPRESSIBLE_SUBTYPES = Set.of(
+            "json", "xml", "javascript", "ecmascript", "csv", "yaml", "x-yaml", "sql", "x-sh",
+            "x-tar", "rtf", "postscript", "x-ndjson", "graphql", "x-www-form-urlencoded", "svg+xml");
+
+    private static final Set<String> INCOMPRESSIBLE_TYPES = Set.of("image", "video", "audio", "font");
+
+    private static final Set<String> INCOMPRESSIBLE_SUBTYPES = Set.of(
+            "zip", "gzip", "x-gzip", "x-bzip2", "x-xz", "zstd", "x-7z-compressed", "x-rar-compressed",
+            "vnd.rar", "java-archive", "pdf", "epub+zip", "ogg", "x-compress", "x-lzip", "x-lz4");
+
+    // Leading bytes of formats whose payload is already compressed
+    private static final List<Signature> COMPRESSED_SIGNATURES = List.of(
+            new Signature(0, 0x1F, 0x8B),                         // gzip
+            new Signature(0, 'P', 'K', 0x03, 0x04),               // zip, docx, jar, epub
+            new Signature(0, 'B', 'Z', 'h'),                      // bzip2
+            new Signature(0, 0xFD, '7', 'z', 'X', 'Z', 0x00),     // xz
+            new Signature(0, 0x28, 0xB5, 0x2F, 0xFD),             // zstd
+            new Signature(0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C),   // 7z
+            new Signature(0, 'R', 'a', 'r', '!'),                 // rar
+            new Signature(0, 0x89, 'P', 'N', 'G'),                // png
+            new Signature(0, 0xFF, 0xD8, 0xFF),                   // jpeg
+            new Signature(0, 'G', 'I', 'F', '8'),                 // gif
+            new Signature(8, 'W', 'E', 'B', 'P'),                 // webp
+            new Signature(4, 'f', 't', 'y', 'p'),                 // mp4, mov, heic
+            new Signature(0, 'O', 'g', 'g', 'S'),                 // ogg
+            new Signature(0, 'I', 'D', '3'),                      // mp3
+            new Signature(0, 0x1A, 0x45, 0xDF, 0xA3),             // matroska, webm
+            new Signature(0, '%', 'P', 'D', 'F'));                // pdf
+
+    @Value("${file.compression.enabled}")
+    private boolean enabled;
+
+    @Value("${file.compression.min-size}")
+    private DataSize minSize;
+
+    @Value("${file.compression.level}")
+    private int level;
+
+    private enum ContentClass { COMPRESSIBLE, INCOMPRESSIBLE, UNKNOWN }
+
+    private record Signature(int offset, int... bytes) {
+
+        boolean matches(byte[] sample, int length) {
+            if (length < offset + bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if ((sample[offset + i] & 0xFF) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the codec to store the content with, or null to store it as is. Reads at most
+     * {@link #SAMPLE_SIZE} leading bytes from {@code content}.
+     *
+     * @param size size of the content, -1 if unknown
+     */
+    public String selectCodec(String contentType, long size, InputStream content) throws IOException {
+        if (!enabled || (size >= 0 && !inspects(size))) {
+            return null;
+        }
+
+        byte[] sample = content.readNBytes(SAMPLE_SIZE);
+        if (size < 0 && sample.length < SAMPLE_SIZE && !inspects(sample.length)) {
+            // The sample is all there is
+            return null;
+        }
+        for (Signature signature : COMPRESSED_SIGNATURES) {
+            if (signature.matches(sample, sample.length)) {
+                return null;
+            }
+        }
+
+        return switch (classify(contentType)) {
+            case COMPRESSIBLE -> GZIP;
+            case INCOMPRESSIBLE -> null;
+            case UNKNOWN -> compressesWell(sample) ? GZIP : null;
+        };
+    }
+
+    /**
+     * Whether {@link #selectCodec} looks at content of this size; content it looked at and
+     * stored as is was found not worth compressing.
+     */
+    public boolean inspects(long size) {
+        return enabled && size >= minSize.toBytes();
+    }
+
+    /**
+     * Whether stored content is already compressed, so deflating it again would not pay off.
+     *
+     * @param inspected whether {@link #selectCodec} decided to store it as is; content that
+     *                  skipped it (hot tier, stored before compression) is judged by its type
+     */
+    public boolean isIncompressible(String codec, boolean inspected, String contentType) {
+        if (codec != null) {
+            return false;
+        }
+        return inspected || classify(contentType) == ContentClass.INCOMPRESSIBLE;
+    }
+
+    /**
+     * Wraps {@code out} so what is written to it is encoded; closing it finishes the encoding
+     * and closes {@code out}.
+     */
+    public OutputStream compressing(String codec, OutputStream out) throws IOException {
+        requireSupported(codec);
+        return new LeveledGZIPOutputStream(out, level);
+    }
+
+    public InputStream decompress(String codec, InputStream in) throws IOException {
+        requireSupported(codec);
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Suffix for the stored file name, so differently encoded copies of one blob never collide.
+     */
+    public String fileSuffix(String codec) {
+        return codec == null ? "" : ".gz";
+    }
+
+    private ContentClass classify(String contentType) {
+        if (contentType == null) {
+            return ContentClass.UNKNOWN;
+        }
+
+        MediaType mediaType;
+        try {
+            mediaType = MediaType.parseMediaType(contentType);
+        } catch (InvalidMediaTypeException e) {
+            return ContentClass.UNKNOWN;
+        }
+
+        String type = mediaType.getType().toLowerCase();
+        String subtype = mediaType.getSubtype().toLowerCase();
+        String suffix = mediaType.getSubtypeSuffix();
+        if ("text".equals(type) || COMPRESSIBLE_SUBTYPES.contains(subtype)
+                || (suffix != null && COMPRESSIBLE_SUBTYPES.contains(suffix.toLowerCase()))) {
+            return ContentClass.COMPRESSIBLE;
+        }
+        if (INCOMPRESSIBLE_TYPES.contains(type) || INCOMPRESSIBLE_SUBTYPES.contains(subtype)
+                || (suffix != null && INCOMPRESSIBLE_SUBTYPES.contains(suffix.toLowerCase()))) {
+            return ContentClass.INCOMPRESSIBLE;
+        }
+        return ContentClass.UNKNOWN;
+    }
+
+    private boolean compressesWell(byte[] sample) {
+        if (sample.length == 0) {
+            return false;
+        }
+
+        // Fastest level is enough to tell text-like data from noise
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] out = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return compressed <= sample.length * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void requireSupported(String codec) {
+        if (!GZIP.equals(codec)) {
+            throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+    }
+
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.fileshare.service;
+
+import com.fileshare.model.File;
+import com.fileshare.service.FileTransferService.Delivery;
+import com.fileshare.service.FileTransferService.Span;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the connections downloading each claimed file on this node, so that a file is
+ * finalized once all of its content has been sent rather than when one response reaches its
+ * last byte.
+ *
+ * The first connection claims the file with one conditional UPDATE; further connections of
+ * the same recipient, such as a download manager fetching ranges in parallel, join the claim
+ * without a statement. Each connection reports what its response delivered when it closes.
+ * When the last one closes, the claim is queued to be finalized if the spans delivered cover
+ * the content, and to be released otherwise; the spans are kept, so a resume by the same
+ * recipient only has to fetch the rest.
+ *
+ * Both run on a background tick, off the download's request: finalizing marks the file
+ * downloaded and releases its content, releasing makes it downloadable again unless the
+ * recipient has reconnected in the meantime. Spans count only once written and flushed on the
+ * request thread, so a transfer that breaks off never finalizes the file. Claims still queued
+ * when the node goes down are reclaimed by {@link ExpiryReaperService} after
+ * {@code file.download.claim-timeout}.
+ * Coverage is per node: ranges of one download spread over several nodes are not added up.
+ */
+@Service
+@Slf4j
+public class DownloadClaims {
+
+    private final FileStorageService fileStorageService;
+    private final DownloadTokenService downloadTokenService;
+    private final Map<Long, Claim> claims = new ConcurrentHashMap<>();
+    private final Queue<Closed> closed = new ConcurrentLinkedQueue<>();
+
+    private static final class Claim {
+
+        // Everything below is guarded by lock
+        private final ReentrantLock lock = new ReentrantLock();
+        private File file;
+        private String userId;
+        private int connections;
+        private boolean finished;
+        private long length = -1;
+        // Merged spans delivered so far, start to end
+        private final TreeMap<Long, Long> covered = new TreeMap<>();
+    }
+
+    private record Closed(Long fileId, Claim claim) {
+    }
+
+    /**
+     * One connection's share of a claim, closed with what its response delivered.
+     */
+    public final class Transfer {
+
+        private final Long fileId;
+        private final Claim claim;
+        private final File file;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Transfer(Long fileId, Claim claim, File file) {
+            this.fileId = fileId;
+            this.claim = claim;
+            this.file = file;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public void close(Delivery delivery) {
+            if (closed.compareAndSet(false, true)) {
+                DownloadClaims.this.close(fileId, claim, delivery);
+            }
+        }
+    }
+
+    public DownloadClaims(FileStorageService fileStorageService,
+                          DownloadTokenService downloadTokenService,
+                          MeterRegistry meterRegistry) {
+        this.fileStorageService = fileStorageService;
+        this.downloadTokenService = downloadTokenService;
+
+        Gauge.builder("fileshare.download.claims", claims, Map::size)
+                .description("Claimed files with connections or delivered spans on this node")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.download.finalize.pending", closed, Queue::size)
+                .description("Closed claims waiting to be finalized or released")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Claims the file a download token grants, or joins the recipient's claim on it; empty if
+     * the token is invalid or the file is not available to this recipient.
+     */
+    public Optional<Transfer> open(String token, String userId) {
+        return downloadTokenService.parseFileId(token)
+                .flatMap(fileId -> open(fileId, userId));
+    }
+
+    public Optional<Transfer> open(Long fileId, String userId) {
+        while (true) {
+            Claim claim = claims.computeIfAbsent(fileId, id -> new Claim());
+            claim.lock.lock();
+            try {
+                if (claims.get(fileId) != claim) {
+                    // Dropped while this thread waited for it
+                    continue;
+                }
+                if (claim.finished) {
+                    return Optional.empty();
+                }
+                if (claim.connections > 0) {
+                    // Held by a connection on this node; only its recipient may join
+                    return userId.equals(claim.userId)
+                            ? Optional.of(join(fileId, claim))
+                            : Optional.empty();
+                }
+
+                Optional<File> file = fileStorageService.claimDownload(fileId, userId);
+                if (file.isEmpty()) {
+                    if (claim.covered.isEmpty()) {
+                        claims.remove(fileId, claim);
+                    }
+                    return Optional.empty();
+                }
+                if (!userId.equals(claim.userId)) {
+                    // Spans delivered to someone else don't count for this recipient
+                    reset(claim, -1);
+                    claim.userId = userId;
+                }
+                claim.file = file.get();
+                return Optional.of(join(fileId, claim));
+            } finally {
+                claim.lock.unlock();
+            }
+        }
+    }
+
+    private Transfer join(Long fileId, Claim claim) {
+        claim.connections++;
+        return new Transfer(fileId, claim, claim.file);
+    }
+
+    private void close(Long fileId, Claim claim, Delivery delivery) {
+        claim.lock.lock();
+        try {
+            claim.connections--;
+            if (!claim.finished) {
+                cover(claim, delivery);
+            }
+            if (claim.connections > 0) {
+                return;
+            }
+
+            closed.add(new Closed(fileId, claim));
+        } finally {
+            claim.lock.unlock();
+        }
+    }
+
+    private void cover(Claim claim, Delivery delivery) {
+        if (delivery.spans().isEmpty()) {
+            return;
+        }
+        if (delivery.length() != claim.length) {
+            // Another representation (sent encoded, or decoded for a range); spans don't add up across them
+            reset(claim, delivery.length());
+        }
+        for (Span span : delivery.spans()) {
+            add(claim.covered, span.start(), span.end());
+        }
+
+        Map.Entry<Long, Long> first = claim.covered.firstEntry();
+        claim.finished = first.getKey() == 0 && first.getValue() >= claim.length;
+    }
+
+    private static void add(TreeMap<Long, Long> covered, long start, long end) {
+        Map.Entry<Long, Long> before = covered.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = covered.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            covered.remove(next.getKey());
+        }
+        covered.put(start, end);
+    }
+
+    private static void reset(Claim claim, long length) {
+        claim.covered.clear();
+        claim.length = length;
+    }
+
+    @Scheduled(fixedDelayString = "${file.download.finalize-interval-ms}")
+    public void finalizeCompleted() {
+        settleClosed();
+
+        // Spans kept for a resume that can no longer come
+        LocalDateTime now = LocalDateTime.now();
+        claims.forEach((fileId, claim) -> {
+            if (!claim.lock.tryLock()) {
+                return;
+            }
+            try {
+                if (claim.connections == 0 && !claim.finished
+                        && (claim.file == null || !claim.file.getExpiresAt().isAfter(now))) {
+                    claims.remove(fileId, claim);
+                }
+            } finally {
+                claim.lock.unlock();
+            }
+        });
+    }
+
+    @PreDestroy
+    public void finalizeAll() {
+        settleClosed();
+    }
+
+    private void settleClosed() {
+        // Only what was queued so far: a failed claim is queued again for the next tick
+        Closed done;
+        for (int pending = closed.size(); pending > 0 && (done = closed.poll()) != null; pending--) {
+            settle(done);
+        }
+    }
+
+    private void settle(Closed done) {
+        Claim claim = done.claim();
+        claim.lock.lock();
+        try {
+            if (claim.finished) {
+                fileStorageService.completeDownload(claim.file);
+                claims.remove(done.fileId(), claim);
+            } else if (claim.connections == 0) {
+                // Downloadable again; a resume by the same recipient keeps what was delivered
+                fileStorageService.releaseDownload(claim.file);
+            }
+        } catch (RuntimeException e) {
+            // Retry on the next tick
+            closed.add(done);
+            log.error("Error settling download of file {}", done.fileId(), e);
+        } finally {
+            claim.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.fileshare.service;
+
+import com.fileshare.security.JwtKeys;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.security.Key;
+import java.util.Date;
+import java.util.Optional;
+
+/**
+ * Issues and validates self-contained download tokens.
+ *
+ * A token carries the file id and its expiry and is signed with a key derived from
+ * {@code jwt.secret} for download tokens only, so it can be checked in memory without any
+ * database state.
+ */
+@Service
+public class DownloadTokenService {
+
+    private static final String AUDIENCE = "download";
+
+    @Value("${jwt.secret}")
+    private String jwtSecret;
+
+    @Value("${file.download-token.expiry-seconds}")
+    private long expirySeconds;
+
+    private Key signingKey;
+
+    @PostConstruct
+    void init() {
+        signingKey = JwtKeys.fromSecret(jwtSecret, AUDIENCE);
+    }
+
+    public String createToken(Long fileId) {
+        long now = System.currentTimeMillis();
+        return Jwts.builder()
+                .setSubject(String.valueOf(fileId))
+                .setAudience(AUDIENCE)
+                .setIssuedAt(new Date(now))
+                .setExpiration(new Date(now + expirySeconds * 1000))
+                .signWith(signingKey, SignatureAlgorithm.HS256)
+                .compact();
+    }
+
+    public Optional<Long> parseFileId(String token) {
+        try {
+            Claims claims = Jwts.parserBuilder()
+                    .setSigningKey(signingKey)
+                    .requireAudience(AUDIENCE)
+                    .build()
+                    .parseClaimsJws(token)
+                    .getBody();
+            return Optional.of(Long.valueOf(claims.getSubject()));
+        } catch (JwtException | IllegalArgumentException e) {
+            // Bad signature, expired, malformed or not a download token
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package com.fileshare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encrypts blob files at rest in independently authenticated AES-GCM segments.
+ *
+ * Each file gets its own random key, stored in the file header wrapped by the master key.
+ * The content follows as fixed-size segments, each sealed with a nonce derived from its index
+ * and a flag marking the last one, so segments can't be reordered, dropped or cut off without
+ * failing authentication. Segments are sealed and opened on a worker pool: writers hand each
+ * full segment to the workers, which write them at their fixed offsets, and readers decrypt
+ * the next segments while the current one is consumed. A reader starts one segment ahead and
+ * only decrypts further ahead while it has to wait for decryption, so a slow reader holds two
+ * segments, not {@code read-ahead}. A read that starts mid-file only decrypts from the segment
+ * holding its first byte.
+ *
+ * Encrypted files carry {@link #FILE_SUFFIX} in their name; files without it are read as they
+ * are, so blobs stored before encryption was enabled stay readable.
+ */
+@Service
+public class EncryptionService {
+
+    public static final String FILE_SUFFIX = ".enc";
+
+    private static final byte[] MAGIC = {'F', 'S', 'E', '1'};
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    // Magic, segment size, wrapping nonce, wrapped file key and its tag
+    private static final int HEADER_SIZE = MAGIC.length + Integer.BYTES + NONCE_SIZE + KEY_SIZE + TAG_SIZE;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final boolean enabled;
+    private final SecretKey masterKey;
+    private final int segmentSize;
+    private final int readAhead;
+    private final ExecutorService workers;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(EncryptionService::newCipher);
+    private final Counter encryptedSegments;
+    private final Counter decryptedSegments;
+
+    /**
+     * @param bytes     the header as stored, authenticated with every segment
+     * @param fileKey   the unwrapped key of the file's segments
+     */
+    private record Header(byte[] bytes, int segmentSize, SecretKey fileKey) {
+    }
+
+    public EncryptionService(@Value("${file.encryption.enabled}") boolean enabled,
+                             @Value("${file.encryption.master-key}") String masterKey,
+                             @Value("${file.encryption.segment-size}") DataSize segmentSize,
+                             @Value("${file.encryption.threads}") int threads,
+                             @Value("${file.encryption.read-ahead}") int readAhead,
+                             MeterRegistry meterRegistry) {
+        this.masterKey = parseMasterKey(masterKey);
+        if (enabled && this.masterKey == null) {
+            throw new IllegalStateException("file.encryption.enabled requires file.encryption.master-key");
+        }
+        if (segmentSize.toBytes() < 1 || segmentSize.toBytes() > MAX_SEGMENT_SIZE) {
+            throw new IllegalStateException("file.encryption.segment-size must be between 1 byte and 16MB");
+        }
+        this.enabled = enabled;
+        this.segmentSize = (int) segmentSize.toBytes();
+        this.readAhead = Math.max(1, readAhead);
+
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "blob-crypto-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.encryptedSegments = Counter.builder("fileshare.encryption.segments")
+                .description("Blob segments sealed or opened")
+                .tag("operation", "encrypt")
+                .register(meterRegistry);
+        this.decryptedSegments = Counter.builder("fileshare.encryption.segments")
+                .description("Blob segments sealed or opened")
+                .tag("operation", "decrypt")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Whether new blobs are written encrypted.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isEncrypted(Path path) {
+        return path.getFileName().toString().endsWith(FILE_SUFFIX);
+    }
+
+    /**
+     * Suffix for the stored file name, after the codec's.
+     */
+    public String fileSuffix(boolean encrypted) {
+        return encrypted ? FILE_SUFFIX : "";
+    }
+
+    /**
+     * Length of the stored bytes as they read back, which for an encrypted file excludes the
+     * header and tags.
+     */
+    public long storedLength(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (!isEncrypted(path)) {
+                return channel.size();
+            }
+            ByteBuffer prefix = ByteBuffer.allocate(MAGIC.length + Integer.BYTES);
+            readFully(channel, prefix, 0, path);
+            int fileSegmentSize = prefix.getInt(MAGIC.length);
+            checkSegmentSize(fileSegmentSize, path);
+            return plainLength(channel.size(), fileSegmentSize, path);
+        }
+    }
+
+    /**
+     * The stored bytes of a file from {@code start} on, decrypted if the file is encrypted.
+     */
+    public InputStream openStored(Path path, long start) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (!isEncrypted(path)) {
+                channel.position(start);
+                return Channels.newInputStream(channel);
+            }
+            return new SegmentInputStream(channel, readHeader(channel, path), start, path);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the content encrypted to {@code target}, replacing it if it exists.
+     */
+    public void encrypt(InputStream in, Path target) throws IOException {
+        try (OutputStream out = encrypting(target)) {
+            in.transferTo(out);
+        }
+    }
+
+    /**
+     * A stream that writes what it is given encrypted to {@code target}, replacing it if it
+     * exists. The file is complete once the stream is closed.
+     */
+    public OutputStream encrypting(Path target) throws IOException {
+        Header header = newHeader();
+        FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            writeFully(channel, ByteBuffer.wrap(header.bytes()), 0);
+            return new SegmentOutputStream(channel, header, target);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Seals segments on the worker pool as they fill up.
+     */
+    private class SegmentOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final Header header;
+        private final Path path;
+        private final Deque<Future<?>> pending = new ArrayDeque<>();
+        private byte[] segment;
+        private int filled;
+        private long nextSegment;
+        private boolean failed;
+        private boolean closed;
+
+        SegmentOutputStream(FileChannel channel, Header header, Path path) {
+            this.channel = channel;
+            this.header = header;
+            this.path = path;
+            this.segment = new byte[header.segmentSize()];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (filled == segment.length) {
+                    // A full segment is only known not to be the last once more content follows
+                    submit(false);
+                }
+                int count = Math.min(length, segment.length - filled);
+                System.arraycopy(buffer, offset, segment, filled, count);
+                filled += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (!failed) {
+                    submit(true);
+                    while (!pending.isEmpty()) {
+                        await(pending.removeFirst(), path);
+                    }
+                }
+            } finally {
+                // After a failure, let the segments in flight finish before the channel is closed
+                for (Future<?> future : pending) {
+                    awaitQuietly(future);
+                }
+                channel.close();
+            }
+        }
+
+        private void submit(boolean last) throws IOException {
+            try {
+                if (pending.size() >= readAhead) {
+                    await(pending.removeFirst(), path);
+                }
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            long index = nextSegment++;
+            byte[] plaintext = filled == segment.length ? segment : Arrays.copyOf(segment, filled);
+            pending.addLast(workers.submit(() -> {
+                byte[] sealed = seal(header, index, plaintext, last);
+                writeFully(channel, ByteBuffer.wrap(sealed), segmentOffset(index, header.segmentSize()));
+                encryptedSegments.increment();
+                return null;
+            }));
+            segment = last ? EMPTY : new byte[header.segmentSize()];
+            filled = 0;
+        }
+    }
+
+    /**
+     * Decrypts segments on the worker pool ahead of the reader.
+     */
+    private class SegmentInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final Header header;
+        private final Path path;
+        private final long fileSize;
+        private final long segmentCount;
+        private final Deque<Future<byte[]>> ahead = new ArrayDeque<>();
+        // Segments decrypted ahead of the reader, grown up to readAhead while the reader waits
+        private int window = 1;
+        private long nextSegment;
+        private byte[] current = EMPTY;
+        private int position;
+        private int skip;
+
+        SegmentInputStream(FileChannel channel, Header header, long start, Path path) throws IOException {
+            this.channel = channel;
+            this.header = header;
+            this.path = path;
+            this.fileSize = channel.size();
+            long segmentLength = header.segmentSize() + TAG_SIZE;
+            plainLength(fileSize, header.segmentSize(), path);
+            this.segmentCount = (fileSize - HEADER_SIZE + segmentLength - 1) / segmentLength;
+            // Only the segments from the one holding the first byte are decrypted
+            this.nextSegment = start / header.segmentSize();
+            this.skip = (int) (start % header.segmentSize());
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current.length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Segments already being read fail on the closed channel; nobody waits for them
+            ahead.forEach(future -> future.cancel(false));
+            ahead.clear();
+            channel.close();
+        }
+
+        private boolean fill() throws IOException {
+            while (position == current.length) {
+                while (ahead.size() < window && nextSegment < segmentCount) {
+                    long index = nextSegment++;
+                    ahead.addLast(workers.submit(() -> open(index)));
+                }
+                if (ahead.isEmpty()) {
+                    return false;
+                }
+                Future<byte[]> next = ahead.removeFirst();
+                if (!next.isDone() && window < readAhead) {
+                    // Decryption is behind the reader; a reader that keeps up never gets here
+                    window++;
+                }
+                current = await(next, path);
+                position = Math.min(skip, current.length);
+                skip = 0;
+            }
+            return true;
+        }
+
+        private byte[] open(long index) throws IOException {
+            long offset = segmentOffset(index, header.segmentSize());
+            boolean last = index == segmentCount - 1;
+            int length = (int) (last ? fileSize - offset : header.segmentSize() + TAG_SIZE);
+            ByteBuffer sealed = ByteBuffer.allocate(length);
+            readFully(channel, sealed, offset, path);
+
+            Cipher cipher = ciphers.get();
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, header.fileKey(), new GCMParameterSpec(TAG_SIZE * 8, nonce(index, last)));
+                cipher.updateAAD(header.bytes());
+                byte[] plaintext = cipher.doFinal(sealed.array(), 0, length);
+                decryptedSegments.increment();
+                return plaintext;
+            } catch (AEADBadTagException e) {
+                throw new IOException("Segment " + index + " of " + path + " failed authentication");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to decrypt " + path + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private byte[] seal(Header header, long index, byte[] plaintext, boolean last) throws IOException {
+        Cipher cipher = ciphers.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, header.fileKey(), new GCMParameterSpec(TAG_SIZE * 8, nonce(index, last)));
+            cipher.updateAAD(header.bytes());
+            return cipher.doFinal(plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt segment " + index + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Header newHeader() throws IOException {
+        byte[] fileKey = new byte[KEY_SIZE];
+        random.nextBytes(fileKey);
+        byte[] wrapNonce = new byte[NONCE_SIZE];
+        random.nextBytes(wrapNonce);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(segmentSize).put(wrapNonce);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_SIZE * 8, wrapNonce));
+            cipher.updateAAD(header.array(), 0, MAGIC.length + Integer.BYTES);
+            header.put(cipher.doFinal(fileKey));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to wrap file key: " + e.getMessage(), e);
+        }
+        return new Header(header.array(), segmentSize, new SecretKeySpec(fileKey, "AES"));
+    }
+
+    private Header readHeader(FileChannel channel, Path path) throws IOException {
+        if (masterKey == null) {
+            throw new IOException(path + " is encrypted but no file.encryption.master-key is configured");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0, path);
+        byte[] bytes = header.array();
+        if (!Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException(path + " is not an encrypted blob");
+        }
+        int fileSegmentSize = header.getInt(MAGIC.length);
+        checkSegmentSize(fileSegmentSize, path);
+
+        int nonceOffset = MAGIC.length + Integer.BYTES;
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, masterKey,
+                    new GCMParameterSpec(TAG_SIZE * 8, bytes, nonceOffset, NONCE_SIZE));
+            cipher.updateAAD(bytes, 0, nonceOffset);
+            byte[] fileKey = cipher.doFinal(bytes, nonceOffset + NONCE_SIZE, KEY_SIZE + TAG_SIZE);
+            return new Header(bytes, fileSegmentSize, new SecretKeySpec(fileKey, "AES"));
+        } catch (AEADBadTagException e) {
+            throw new IOException("Key of " + path + " was not wrapped by the configured master key");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to unwrap the key of " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static long segmentOffset(long index, int segmentSize) {
+        return HEADER_SIZE + index * (segmentSize + TAG_SIZE);
+    }
+
+    /**
+     * Segment index in the first 8 bytes, last-segment flag in the final one.
+     */
+    private static byte[] nonce(long index, boolean last) {
+        ByteBuffer nonce = ByteBuffer.allocate(NONCE_SIZE);
+        nonce.putLong(index);
+        nonce.put(NONCE_SIZE - 1, (byte) (last ? 1 : 0));
+        return nonce.array();
+    }
+
+    private static long plainLength(long fileSize, int segmentSize, Path path) throws IOException {
+        // Every file has at least one segment, which may be empty
+        long body = fileSize - HEADER_SIZE;
+        if (body < TAG_SIZE) {
+            throw new EOFException("Encrypted file " + path + " is truncated");
+        }
+        long segmentLength = segmentSize + TAG_SIZE;
+        long fullSegments = body / segmentLength;
+        long remainder = body % segmentLength;
+        if (remainder > 0 && remainder < TAG_SIZE) {
+            throw new EOFException("Encrypted file " + path + " is truncated");
+        }
+        return fullSegments * segmentSize + (remainder > 0 ? remainder - TAG_SIZE : 0);
+    }
+
+    private static void checkSegmentSize(int segmentSize, Path path) throws IOException {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Encrypted file " + path + " has an invalid segment size");
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path path) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read == -1) {
+                throw new EOFException("Encrypted file " + path + " is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static <T> T await(Future<T> future, Path path) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing " + path);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Failed to process " + path + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    private static void awaitQuietly(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already failed or never started
+        }
+    }
+
+    private static SecretKey parseMasterKey(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("file.encryption.master-key must be Base64", e);
+        }
+        if (key.length != KEY_SIZE) {
+            throw new IllegalStateException("file.encryption.master-key must be " + KEY_SIZE + " bytes");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " not available", e);
+        }
+    }
+}
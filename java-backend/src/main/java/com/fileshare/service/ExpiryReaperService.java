@@ -0,0 +1,190 @@
+package com.fileshare.service;
+
+import com.fileshare.model.File;
+import com.fileshare.repository.FileRepository;
+import com.fileshare.service.StorageVolumes.Volume;
+import com.fileshare.util.TimingWheel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.FileSystems;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reclaims files that were never downloaded.
+ *
+ * Every waiting file is scheduled in a {@link TimingWheel} at its expiry. Each tick the due
+ * files are flipped to EXPIRED in batched transactions, dropped from the
+ * {@link ActiveFileRegistry} and their blob references released. When free space on a
+ * storage volume falls below the configured watermark, the files on it closest to expiry
+ * are evicted early. A file claimed by a download is left alone unless the claim outlives
+ * {@code file.download.claim-timeout}, which only happens if the node serving it went down.
+ */
+@Service
+@Slf4j
+public class ExpiryReaperService {
+
+    private static final String STATUS_WAITING = "WAITING_FOR_DOWNLOAD";
+    private static final String STATUS_DOWNLOADING = "DOWNLOADING";
+    private static final String STATUS_EXPIRED = "EXPIRED";
+    private static final int MAX_EVICTION_ROUNDS = 10;
+
+    private final FileRepository fileRepository;
+    private final BlobStorageService blobStorageService;
+    private final ActiveFileRegistry activeFileRegistry;
+    private final StorageVolumes storageVolumes;
+    private final TransactionTemplate transactionTemplate;
+    private final Queue<ScheduledExpiry> overdue = new ConcurrentLinkedQueue<>();
+    private final TimingWheel<ScheduledExpiry> wheel;
+    private final Timer reclaimLag;
+    private final Counter expiredCounter;
+    private final Counter evictedCounter;
+
+    @Value("${file.reaper.batch-size}")
+    private int batchSize;
+
+    @Value("${file.reaper.min-free-space}")
+    private DataSize minFreeSpace;
+
+    @Value("${file.download.claim-timeout}")
+    private Duration claimTimeout;
+
+    private record ScheduledExpiry(Long fileId, long deadlineMillis) {
+    }
+
+    public ExpiryReaperService(FileRepository fileRepository,
+                               BlobStorageService blobStorageService,
+                               ActiveFileRegistry activeFileRegistry,
+                               StorageVolumes storageVolumes,
+                               TransactionTemplate transactionTemplate,
+                               MeterRegistry meterRegistry,
+                               @Value("${file.reaper.tick-ms}") long tickMillis,
+                               @Value("${file.reaper.wheel-size}") int wheelSize,
+                               @Value("${file.reaper.wheel-levels}") int wheelLevels) {
+        this.fileRepository = fileRepository;
+        this.blobStorageService = blobStorageService;
+        this.activeFileRegistry = activeFileRegistry;
+        this.storageVolumes = storageVolumes;
+        this.transactionTemplate = transactionTemplate;
+        this.wheel = new TimingWheel<>(tickMillis, wheelSize, wheelLevels, System.currentTimeMillis());
+
+        this.reclaimLag = Timer.builder("fileshare.reaper.lag")
+                .description("Delay between a file's expiry and its reclamation")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.expiredCounter = Counter.builder("fileshare.reaper.reclaimed")
+                .tag("reason", "expired")
+                .register(meterRegistry);
+        this.evictedCounter = Counter.builder("fileshare.reaper.reclaimed")
+                .tag("reason", "disk-watermark")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.reaper.scheduled", wheel, TimingWheel::size)
+                .description("Files waiting in the expiry wheel")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.reaper.overdue", overdue, Queue::size)
+                .description("Expired files waiting to be reclaimed")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void loadWaitingFiles() {
+        // Includes files that expired while the application was down; they are reclaimed on the first tick
+        fileRepository.findFilesByStatus(STATUS_WAITING).forEach(file -> schedule(file.getId(), file.getExpiresAt()));
+        // Claims left behind by a node that stopped mid-download
+        fileRepository.findFilesByStatus(STATUS_DOWNLOADING)
+                .forEach(file -> schedule(file.getId(), file.getExpiresAt().plus(claimTimeout)));
+    }
+
+    public void schedule(Long fileId, LocalDateTime expiresAt) {
+        long deadline = expiresAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        ScheduledExpiry expiry = new ScheduledExpiry(fileId, deadline);
+        if (!wheel.schedule(expiry, deadline)) {
+            overdue.add(expiry);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${file.reaper.tick-ms}")
+    public void tick() {
+        List<ScheduledExpiry> due = wheel.advance(System.currentTimeMillis());
+        ScheduledExpiry expiry;
+        while ((expiry = overdue.poll()) != null) {
+            due.add(expiry);
+        }
+
+        for (int from = 0; from < due.size(); from += batchSize) {
+            List<ScheduledExpiry> batch = due.subList(from, Math.min(from + batchSize, due.size()));
+            try {
+                reclaimExpired(batch);
+            } catch (RuntimeException e) {
+                // Retry on the next tick
+                overdue.addAll(batch);
+                log.error("Error reclaiming expired files", e);
+            }
+        }
+
+        storageVolumes.volumes().forEach(this::enforceDiskWatermark);
+    }
+
+    private void reclaimExpired(List<ScheduledExpiry> batch) {
+        long now = System.currentTimeMillis();
+        List<Long> ids = batch.stream().map(ScheduledExpiry::fileId).toList();
+
+        int reclaimed = reclaim(ids);
+        expiredCounter.increment(reclaimed);
+        batch.forEach(expiry -> reclaimLag.record(Duration.ofMillis(Math.max(0, now - expiry.deadlineMillis()))));
+    }
+
+    private void enforceDiskWatermark(Volume volume) {
+        if (minFreeSpace.toBytes() <= 0) {
+            return;
+        }
+
+        try {
+            // Only files on this volume free space on it; a shared blob is freed with its last file
+            String pathPrefix = volume.root().toString() + FileSystems.getDefault().getSeparator();
+            for (int round = 0; round < MAX_EVICTION_ROUNDS
+                    && volume.usableSpace() < minFreeSpace.toBytes(); round++) {
+                List<Long> ids = fileRepository.findSoonestExpiringIdsUnder(pathPrefix, PageRequest.of(0, batchSize));
+                if (ids.isEmpty()) {
+                    break;
+                }
+                evictedCounter.increment(reclaim(ids));
+            }
+        } catch (RuntimeException e) {
+            log.error("Error enforcing disk watermark on {}", volume.root(), e);
+        }
+    }
+
+    private int reclaim(List<Long> ids) {
+        // Lock the rows still waiting so a concurrent claim can't take a file being expired
+        LocalDateTime staleClaimExpiry = LocalDateTime.now().minus(claimTimeout);
+        List<File> reclaimed = transactionTemplate.execute(status -> {
+            List<File> files = new ArrayList<>(fileRepository.findReclaimableByIdInForUpdate(ids, staleClaimExpiry));
+            files.forEach(file -> file.setStatus(STATUS_EXPIRED));
+            return files;
+        });
+
+        // Storage is released only after the status change is committed
+        for (File file : reclaimed) {
+            activeFileRegistry.remove(file.getConnectionCode());
+            blobStorageService.releaseFileContent(file);
+        }
+        return reclaimed.size();
+    }
+}
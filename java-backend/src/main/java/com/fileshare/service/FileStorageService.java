@@ -6,139 +6,547 @@ import com.fileshare.model.File;
 import com.fileshare.model.User;
 import com.fileshare.repository.FileRepository;
 import com.fileshare.repository.UserRepository;
-import lombok.RequiredArgsConstructor;
+import com.fileshare.service.BlobStorageService.StoredBlob;
+import com.fileshare.util.FileUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
-@RequiredArgsConstructor
 public class FileStorageService {
 
+    private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CODE_ATTEMPTS = 3;
+    private static final String STATUS_WAITING = "WAITING_FOR_DOWNLOAD";
+    private static final String STATUS_BUNDLED = "BUNDLED";
+    private static final String BUNDLE_CONTENT_TYPE = "application/zip";
+
     private final FileRepository fileRepository;
     private final UserRepository userRepository;
     private final CodeGenerationService codeGenerationService;
-    
-    @Value("${file.upload.directory}")
-    private String uploadDir;
+    private final DownloadTokenService downloadTokenService;
+    private final BlobStorageService blobStorageService;
+    private final ActiveFileRegistry activeFileRegistry;
+    private final ExpiryReaperService expiryReaperService;
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+    private final Timer multipartUploadTimer;
+    private final Timer streamUploadTimer;
+    private final Timer chunkedCommitTimer;
+    private final Timer bundleUploadTimer;
+    private final Timer lookupTimer;
+    private final Timer downloadUrlTimer;
+    private final Counter uploadedBytes;
+    // Files looked up by /verify, kept while the download token issued for them is valid; their
+    // paths are checked again when read, as a migration may move the content meanwhile
+    private final Map<Long, VerifiedFile> verifiedFiles = new ConcurrentHashMap<>();
+    private final AtomicLong nextVerifiedPurge = new AtomicLong();
     
     @Value("${file.connection-code.expiry-minutes}")
     private int defaultExpiryMinutes;
     
+    @Value("${file.upload.stream.max-size}")
+    private DataSize maxStreamSize;
+    
+    @Value("${file.bundle.max-files}")
+    private int maxBundleFiles;
+    
+    @Value("${file.bundle.default-name}")
+    private String defaultBundleName;
+    
+    @Value("${file.download-token.expiry-seconds}")
+    private long downloadTokenExpirySeconds;
+    
+    @FunctionalInterface
+    private interface Upload {
+        FileDTO store() throws IOException;
+    }
+    
+    private record VerifiedFile(File file, List<File> members, long expiresAtMillis) {
+    }
+    
+    public FileStorageService(FileRepository fileRepository,
+                              UserRepository userRepository,
+                              CodeGenerationService codeGenerationService,
+                              DownloadTokenService downloadTokenService,
+                              BlobStorageService blobStorageService,
+                              ActiveFileRegistry activeFileRegistry,
+                              ExpiryReaperService expiryReaperService,
+                              MeterRegistry meterRegistry) {
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.codeGenerationService = codeGenerationService;
+        this.downloadTokenService = downloadTokenService;
+        this.blobStorageService = blobStorageService;
+        this.activeFileRegistry = activeFileRegistry;
+        this.expiryReaperService = expiryReaperService;
+        this.meterRegistry = meterRegistry;
+        
+        this.multipartUploadTimer = uploadTimer("multipart", meterRegistry);
+        this.streamUploadTimer = uploadTimer("stream", meterRegistry);
+        this.chunkedCommitTimer = uploadTimer("chunked", meterRegistry);
+        this.bundleUploadTimer = uploadTimer("bundle", meterRegistry);
+        this.lookupTimer = Timer.builder("fileshare.verify.lookup")
+                .description("Connection code lookup")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.downloadUrlTimer = Timer.builder("fileshare.download.url")
+                .description("Download URL and token generation")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.uploadedBytes = Counter.builder("fileshare.upload.bytes")
+                .description("Bytes received from uploads")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.transfers.active", uploadsInFlight, AtomicInteger::get)
+                .description("Transfers in progress")
+                .tag("direction", "upload")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.files.active", activeFileRegistry, ActiveFileRegistry::activeCount)
+                .description("Files waiting to be downloaded")
+                .register(meterRegistry);
+    }
+    
     public FileDTO storeFile(MultipartFile file, String userId, int expiryMinutes) throws IOException {
-        // Create upload directory if it doesn't exist
-        Path uploadPath = Paths.get(uploadDir);
-        if (!Files.exists(uploadPath)) {
-            Files.createDirectories(uploadPath);
+        return recordUpload(multipartUploadTimer, () -> {
+            String originalFilename = FileUtil.sanitizeFileName(file.getOriginalFilename());
+            
+            // Deduplicate the upload into the blob store
+            StoredBlob blob = blobStorageService.storeMultipart(file, file.getContentType());
+            uploadedBytes.increment(blob.size());
+            
+            return saveFileRecord(originalFilename, file.getContentType(), blob, userId, expiryMinutes);
+        });
+    }
+    
+    /**
+     * Stores several files as one share: a bundle row holds the connection code and expiry,
+     * and one member row per file references its blob. The bundle is downloaded as a ZIP.
+     */
+    public FileDTO storeBundle(List<MultipartFile> files, String bundleName, String userId, int expiryMinutes)
+            throws IOException {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("A bundle needs at least one file");
+        }
+        if (files.size() > maxBundleFiles) {
+            throw new IllegalArgumentException("A bundle can hold at most " + maxBundleFiles + " files");
         }
         
-        // Generate unique filename
-        String originalFilename = file.getOriginalFilename();
-        String storedFilename = UUID.randomUUID().toString() + 
-                                "_" + 
-                                (originalFilename != null ? originalFilename : "unnamed");
-        
-        // Copy file to storage location
-        Path targetPath = uploadPath.resolve(storedFilename);
-        Files.copy(file.getInputStream(), targetPath, StandardCopyOption.REPLACE_EXISTING);
-        
-        // Generate unique connection code
-        String connectionCode = codeGenerationService.generateUniqueCode();
-        
-        // Set expiry time
-        LocalDateTime expiresAt = LocalDateTime.now().plusMinutes(expiryMinutes > 0 ? expiryMinutes : defaultExpiryMinutes);
-        
-        // Get user
-        User uploader = userRepository.findById(userId)
-                .orElseThrow(() -> new RuntimeException("User not found"));
+        return recordUpload(bundleUploadTimer, () -> {
+            List<StoredBlob> blobs = new ArrayList<>(files.size());
+            try {
+                for (MultipartFile file : files) {
+                    StoredBlob blob = blobStorageService.storeMultipart(file, file.getContentType());
+                    uploadedBytes.increment(blob.size());
+                    blobs.add(blob);
+                }
+            } catch (IOException | RuntimeException e) {
+                blobs.forEach(blob -> blobStorageService.release(blob.digest()));
+                throw e;
+            }
+            
+            return saveBundleRecord(files, blobs, bundleName, userId, expiryMinutes);
+        });
+    }
+    
+    /**
+     * @param contentLength declared size of the body, -1 if unknown
+     */
+    public FileDTO storeStream(InputStream in, long contentLength, String fileName, String contentType,
+                               String userId, int expiryMinutes) throws IOException {
+        return recordUpload(streamUploadTimer, () -> {
+            String originalFilename = FileUtil.sanitizeFileName(fileName);
+            
+            // Hash and write the request body in one pass, enforcing the size cap as it arrives
+            StoredBlob blob = blobStorageService.storeStream(in, contentLength, maxStreamSize.toBytes(), contentType);
+            uploadedBytes.increment(blob.size());
+            
+            return saveFileRecord(originalFilename, contentType, blob, userId, expiryMinutes);
+        });
+    }
+    
+    public Path createStagingFile(long size) throws IOException {
+        // Pre-size the file so chunks can be written at their final offsets in any order
+        Path stagingFile = blobStorageService.newStagingPath(size);
+        try (RandomAccessFile raf = new RandomAccessFile(stagingFile.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+        return stagingFile;
+    }
+    
+    public String writeChunk(Path stagingFile, long position, long length, InputStream in) throws IOException {
+        MessageDigest digest = newSha256Digest();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BUFFER_SIZE);
+        long written = 0;
         
-        // Create file record
-        File fileEntity = File.builder()
-                .fileName(originalFilename != null ? originalFilename : "unnamed")
-                .contentType(file.getContentType())
-                .path(targetPath.toString())
-                .size(file.getSize())
-                .connectionCode(connectionCode)
-                .status("WAITING_FOR_DOWNLOAD")
-                .expiresAt(expiresAt)
-                .uploader(uploader)
-                .build();
+        uploadsInFlight.incrementAndGet();
+        try (FileChannel channel = FileChannel.open(stagingFile, StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = in.read(buffer.array())) != -1) {
+                if (written + read > length) {
+                    throw new IllegalArgumentException("Chunk is larger than expected (" + length + " bytes)");
+                }
+                digest.update(buffer.array(), 0, read);
+                
+                // Positional write: chunks never depend on each other's progress
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, position + written);
+                }
+                buffer.clear();
+            }
+        } finally {
+            uploadsInFlight.decrementAndGet();
+            uploadedBytes.increment(written);
+        }
         
-        File savedFile = fileRepository.save(fileEntity);
-        return mapToDTO(savedFile);
+        if (written != length) {
+            throw new IllegalArgumentException("Chunk is shorter than expected (" + length + " bytes)");
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+    
+    public FileDTO commitStagedFile(Path stagingFile, String fileName, String contentType,
+                                    String userId, int expiryMinutes) throws IOException {
+        return recordUpload(chunkedCommitTimer, () -> {
+            StoredBlob blob = blobStorageService.storeStagedFile(stagingFile, contentType);
+            return saveFileRecord(fileName, contentType, blob, userId, expiryMinutes);
+        });
+    }
+    
+    public long getMaxStreamSize() {
+        return maxStreamSize.toBytes();
+    }
+    
+    private FileDTO saveFileRecord(String originalFilename, String contentType, StoredBlob blob,
+                                   String userId, int expiryMinutes) {
+        try {
+            // Set expiry time
+            LocalDateTime expiresAt = LocalDateTime.now().plusMinutes(expiryMinutes > 0 ? expiryMinutes : defaultExpiryMinutes);
+            
+            // Only the foreign key is needed; a reference avoids loading the user
+            User uploader = userRepository.getReferenceById(userId);
+            
+            // Create file record
+            File fileEntity = File.builder()
+                    .fileName(originalFilename)
+                    .contentType(contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                    .path(blob.path().toString())
+                    .blobDigest(blob.digest())
+                    .size(blob.size())
+                    .codec(blob.codec())
+                    .storedSize(blob.storedSize())
+                    .inspected(blob.inspected())
+                    .crc32(blob.crc32())
+                    .status(STATUS_WAITING)
+                    .expiresAt(expiresAt)
+                    .uploader(uploader)
+                    .build();
+            
+            File savedFile = saveWithUniqueCode(fileEntity);
+            activeFileRegistry.register(savedFile.getConnectionCode(), savedFile.getId(), userId, expiresAt);
+            expiryReaperService.schedule(savedFile.getId(), expiresAt);
+            return mapToDTO(savedFile);
+        } catch (RuntimeException e) {
+            // Drop the reference taken for this upload
+            blobStorageService.release(blob.digest());
+            throw e;
+        }
+    }
+    
+    private FileDTO saveBundleRecord(List<MultipartFile> files, List<StoredBlob> blobs, String bundleName,
+                                     String userId, int expiryMinutes) {
+        File bundle = null;
+        try {
+            LocalDateTime expiresAt = LocalDateTime.now().plusMinutes(expiryMinutes > 0 ? expiryMinutes : defaultExpiryMinutes);
+            User uploader = userRepository.getReferenceById(userId);
+            
+            String fileName = FileUtil.sanitizeFileName(bundleName != null && !bundleName.isBlank() ? bundleName : defaultBundleName);
+            if (!fileName.toLowerCase().endsWith(".zip")) {
+                fileName += ".zip";
+            }
+            
+            // The bundle has no content of its own; its members reference the blobs
+            bundle = saveWithUniqueCode(File.builder()
+                    .fileName(fileName)
+                    .contentType(BUNDLE_CONTENT_TYPE)
+                    .path("")
+                    .size(blobs.stream().mapToLong(StoredBlob::size).sum())
+                    .entryCount(blobs.size())
+                    .status(STATUS_WAITING)
+                    .expiresAt(expiresAt)
+                    .uploader(uploader)
+                    .build());
+            
+            // Archive entry names must be unique
+            Set<String> entryNames = new HashSet<>();
+            List<File> members = new ArrayList<>(blobs.size());
+            for (int i = 0; i < blobs.size(); i++) {
+                MultipartFile file = files.get(i);
+                StoredBlob blob = blobs.get(i);
+                members.add(File.builder()
+                        .fileName(uniqueEntryName(FileUtil.sanitizeFileName(file.getOriginalFilename()), entryNames))
+                        .contentType(file.getContentType() != null ? file.getContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                        .path(blob.path().toString())
+                        .blobDigest(blob.digest())
+                        .size(blob.size())
+                        .codec(blob.codec())
+                        .storedSize(blob.storedSize())
+                        .inspected(blob.inspected())
+                        .crc32(blob.crc32())
+                        .bundleId(bundle.getId())
+                        // Derived from the bundle's code so the unique constraint holds; never registered
+                        .connectionCode(bundle.getConnectionCode() + "/" + (i + 1))
+                        .status(STATUS_BUNDLED)
+                        .expiresAt(expiresAt)
+                        .uploader(uploader)
+                        .build());
+            }
+            fileRepository.saveAll(members);
+            
+            activeFileRegistry.register(bundle.getConnectionCode(), bundle.getId(), userId, expiresAt);
+            expiryReaperService.schedule(bundle.getId(), expiresAt);
+            return mapToDTO(bundle);
+        } catch (RuntimeException e) {
+            if (bundle != null) {
+                fileRepository.deleteAll(fileRepository.findByBundleIdOrderByIdAsc(bundle.getId()));
+                fileRepository.delete(bundle);
+            }
+            blobs.forEach(blob -> blobStorageService.release(blob.digest()));
+            throw e;
+        }
+    }
+    
+    private String uniqueEntryName(String name, Set<String> taken) {
+        String candidate = name;
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int copy = 1; !taken.add(candidate.toLowerCase()); copy++) {
+            candidate = base + " (" + copy + ")" + extension;
+        }
+        return candidate;
+    }
+    
+    public List<File> getBundleMembers(File bundle) {
+        VerifiedFile verified = verifiedFiles.get(bundle.getId());
+        if (verified != null && verified.members() != null) {
+            return verified.members();
+        }
+        return fileRepository.findByBundleIdOrderByIdAsc(bundle.getId());
+    }
+    
+    private File saveWithUniqueCode(File fileEntity) {
+        for (int attempt = 1; ; attempt++) {
+            // Generate unique connection code
+            fileEntity.setConnectionCode(codeGenerationService.generateUniqueCode());
+            try {
+                return fileRepository.save(fileEntity);
+            } catch (DataIntegrityViolationException e) {
+                // Code is still held by a downloaded/expired row or was taken concurrently
+                if (attempt >= MAX_CODE_ATTEMPTS) {
+                    throw e;
+                }
+                fileEntity.setId(null);
+            }
+        }
     }
     
     public Optional<FileDTO> getFileByConnectionCode(String code, String userId) {
-        return fileRepository.findByConnectionCode(code)
-                .filter(file -> {
-                    // Check if file is not expired
-                    boolean notExpired = file.getExpiresAt().isAfter(LocalDateTime.now());
-                    
-                    // Check if file is not already downloaded
-                    boolean notDownloaded = "WAITING_FOR_DOWNLOAD".equals(file.getStatus());
-                    
-                    // Check if user is not the uploader (security measure)
-                    boolean notUploader = !file.getUploader().getId().equals(userId);
-                    
-                    return notExpired && notDownloaded && notUploader;
-                })
-                .map(this::mapToDTO);
+        return lookupTimer.record(() -> findFileByConnectionCode(code, userId));
+    }
+    
+    private Optional<FileDTO> findFileByConnectionCode(String code, String userId) {
+        LocalDateTime now = LocalDateTime.now();
+        Optional<ActiveFileRegistry.ActiveFile> active = activeFileRegistry.find(code);
+        Optional<File> file;
+        if (active.isPresent()) {
+            // Check if user is not the uploader (security measure)
+            if (active.get().uploaderId().equals(userId)) {
+                return Optional.empty();
+            }
+            // Re-check against the row in case it changed since it was registered; one SELECT, no join
+            file = fileRepository.findWaitingById(active.get().fileId(), now);
+            if (file.isEmpty()) {
+                // Downloaded or claimed through another node; a released claim is found again below
+                activeFileRegistry.remove(code);
+            }
+        } else {
+            // The registry only knows codes uploaded on this node or present at startup; one SELECT
+            file = fileRepository.findWaitingByConnectionCode(code, now);
+            file.ifPresent(found -> activeFileRegistry.register(code, found.getId(), found.getUploader().getId(),
+                    found.getExpiresAt()));
+            file = file.filter(found -> !found.getUploader().getId().equals(userId));
+        }
+        return file.map(found -> {
+            rememberVerified(found);
+            return mapToDTO(found);
+        });
+    }
+    
+    /**
+     * Keeps a verified file for its download, which then only has to claim it. A bundle's
+     * members are read now too.
+     */
+    private void rememberVerified(File file) {
+        long now = System.currentTimeMillis();
+        long lifetime = downloadTokenExpirySeconds * 1000;
+        long purgeAt = nextVerifiedPurge.get();
+        if (now >= purgeAt && nextVerifiedPurge.compareAndSet(purgeAt, now + lifetime)) {
+            verifiedFiles.values().removeIf(verified -> verified.expiresAtMillis() <= now);
+        }
+        List<File> members = file.getEntryCount() != null
+                ? fileRepository.findByBundleIdOrderByIdAsc(file.getId())
+                : null;
+        verifiedFiles.put(file.getId(), new VerifiedFile(file, members, now + lifetime));
     }
     
     public Optional<FileDTO> getFileById(Long id) {
-        return fileRepository.findById(id)
+        return fileRepository.findWithUploaderById(id)
                 .map(this::mapToDTO);
     }
     
     public String generateDownloadUrl(Long fileId) {
-        File file = fileRepository.findById(fileId)
-                .orElseThrow(() -> new RuntimeException("File not found"));
-        
-        // Generate token for the download URL
-        String token = UUID.randomUUID().toString();
-        
-        // Set expiry time for download URL (3 minutes)
-        LocalDateTime expiresAt = LocalDateTime.now().plusMinutes(3);
-        
-        // Update file with download URL and expiry
-        file.setDownloadUrl(token);
-        file.setDownloadExpiresAt(expiresAt);
-        fileRepository.save(file);
-        
-        // Construct and return download URL
-        return ServletUriComponentsBuilder.fromCurrentContextPath()
-                .path("/api/files/download/")
-                .path(token)
-                .toUriString();
+        return downloadUrlTimer.record(() -> {
+            // Token is self-verifying, so nothing needs to be written back to the file row
+            String token = downloadTokenService.createToken(fileId);
+            
+            // Construct and return download URL
+            return ServletUriComponentsBuilder.fromCurrentContextPath()
+                    .path("/api/files/download/")
+                    .path(token)
+                    .toUriString();
+        });
     }
     
-    public void markAsDownloaded(Long fileId, String userId) {
-        File file = fileRepository.findById(fileId)
-                .orElseThrow(() -> new RuntimeException("File not found"));
-        
-        file.setStatus("DOWNLOADED");
-        file.setDownloadedBy(userId);
-        fileRepository.save(file);
+    /**
+     * Claims a file for {@code userId}; empty if it is no longer waiting or is claimed by
+     * someone else. Of any number of concurrent claims by different users exactly one succeeds.
+     * Takes one statement when the file was verified on this node, two otherwise.
+     */
+    public Optional<File> claimDownload(Long fileId, String userId) {
+        if (fileRepository.claimForDownload(fileId, userId, LocalDateTime.now()) == 0) {
+            return Optional.empty();
+        }
+        VerifiedFile verified = verifiedFiles.get(fileId);
+        if (verified != null) {
+            return Optional.of(verified.file());
+        }
+        return fileRepository.findById(fileId);
     }
     
+    /**
+     * Finishes a claimed download: the file is marked downloaded and its content released.
+     */
+    public void completeDownload(File file) {
+        verifiedFiles.remove(file.getId());
+        if (fileRepository.completeDownload(file.getId()) == 1) {
+            activeFileRegistry.remove(file.getConnectionCode());
+            blobStorageService.releaseFileContent(file);
+        }
+    }
+    
+    /**
+     * Gives a claimed file back after an incomplete transfer, so the recipient can try again.
+     */
+    public void releaseDownload(File file) {
+        if (fileRepository.releaseDownloadClaim(file.getId()) == 1
+                && !file.getExpiresAt().isAfter(LocalDateTime.now())) {
+            // The reaper skipped it while it was claimed
+            expiryReaperService.schedule(file.getId(), file.getExpiresAt());
+        }
+    }
+    
+    /**
+     * The file's content if it is held in memory; the lease must be closed after the transfer.
+     */
+    /**
+     * Where a file's content is on disk now. A file kept since /verify carries the path it had
+     * then; if a storage migration has moved the blob since, the row is read again (one SELECT)
+     * and the kept file updated.
+     */
+    public Path resolveContentPath(File file) {
+        Path path = Paths.get(file.getPath());
+        if (Files.exists(path)) {
+            return path;
+        }
+        fileRepository.findById(file.getId()).ifPresent(current -> file.setPath(current.getPath()));
+        return Paths.get(file.getPath());
+    }
+    
+    public Optional<HotTierStore.Lease> openHotContent(File file) {
+        if (file.getBlobDigest() == null) {
+            return Optional.empty();
+        }
+        return blobStorageService.openHot(file.getBlobDigest());
+    }
+    
+    /**
+     * The waiting file a download token grants, without claiming it.
+     */
     public Optional<File> getFileByDownloadToken(String token) {
-        return fileRepository.findAll().stream()
-                .filter(file -> 
-                    token.equals(file.getDownloadUrl()) && 
-                    file.getDownloadExpiresAt() != null && 
-                    file.getDownloadExpiresAt().isAfter(LocalDateTime.now())
-                )
-                .findFirst();
+        return downloadTokenService.parseFileId(token)
+                .flatMap(fileRepository::findById)
+                .filter(file -> STATUS_WAITING.equals(file.getStatus()));
+    }
+    
+    private FileDTO recordUpload(Timer timer, Upload upload) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        uploadsInFlight.incrementAndGet();
+        try {
+            return upload.store();
+        } finally {
+            uploadsInFlight.decrementAndGet();
+            sample.stop(timer);
+        }
+    }
+    
+    private static Timer uploadTimer(String type, MeterRegistry meterRegistry) {
+        return Timer.builder("fileshare.upload")
+                .description("Time to store an upload and save its file record")
+                .tag("type", type)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+    
+    private MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
     
     private FileDTO mapToDTO(File file) {
@@ -147,6 +555,7 @@ public class FileStorageService {
                 .fileName(file.getFileName())
                 .contentType(file.getContentType())
                 .size(file.getSize())
+                .fileCount(file.getEntryCount() != null ? file.getEntryCount() : 1)
                 .connectionCode(file.getConnectionCode())
                 .status(file.getStatus())
                 .downloadUrl(file.getDownloadUrl())
@@ -158,6 +567,10 @@ public class FileStorageService {
     }
     
     private UserDTO mapUserToDTO(User user) {
+        if (!Hibernate.isInitialized(user)) {
+            // A reference taken for a write; its id is known without loading the row
+            return UserDTO.builder().id(user.getId()).build();
+        }
         return UserDTO.builder()
                 .id(user.getId())
                 .name(user.getName())
@@ -0,0 +1,527 @@
+package com.fileshare.service;
+
+import com.fileshare.model.File;
+import com.fileshare.util.FileUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams stored files to the client with HTTP range support.
+ *
+ * Full and single-range responses of unencrypted bytes that go out as stored are handed to
+ * the connector's sendfile support when it has it, and are otherwise moved with
+ * {@link FileChannel#transferTo} on the request thread; encrypted files are decrypted by
+ * {@link EncryptionService}, from the segment holding the first byte requested. Lengths,
+ * validators and ranges refer to the stored bytes after decryption.
+ * Compressed files go out as stored with {@code Content-Encoding} to clients that accept the
+ * codec, and are decoded on the fly for everyone else and for range requests.
+ * Content held in the hot tier is written from its buffer with the same headers and ranges.
+ * Bundles are streamed as a ZIP built on the fly, entry by entry, so memory use does not
+ * depend on the size of the bundle.
+ * HEAD gets the same headers, worked out from metadata, and no body is read, decrypted or zipped.
+ * Each send reports the {@link Delivery} of its response, which one-shot downloads are
+ * finalized on once it has been written and flushed. The connector writes a sendfile body after
+ * the handler returns and never reports whether it got through, so responses that finalize a
+ * claimed download are always written on the request thread.
+ */
+@Service
+public class FileTransferService {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final String ZIP_CONTENT_TYPE = "application/zip";
+
+    // Tomcat request attributes that enable sendfile for the current response
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private final CompressionService compressionService;
+    private final EncryptionService encryptionService;
+    private final HotTierStore hotTierStore;
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger downloadsInFlight = new AtomicInteger();
+    private final Timer copyTimer;
+    private final Timer memoryTimer;
+    private final Timer zipTimer;
+    private final Counter downloadedBytes;
+    private final long sendfileMinSize;
+
+    @FunctionalInterface
+    private interface RangeWriter {
+        void write(long start, long count, OutputStream out) throws IOException;
+    }
+
+    /**
+     * Bytes {@code [start, end)} of a response's content.
+     */
+    public record Span(long start, long end) {
+    }
+
+    /**
+     * What one response carried: the spans of its content that were sent, out of {@code length}.
+     */
+    public record Delivery(long length, List<Span> spans) {
+
+        /** Nothing was sent. */
+        public static final Delivery NONE = new Delivery(0, List.of());
+
+        public static Delivery whole(long length) {
+            return new Delivery(length, List.of(new Span(0, length)));
+        }
+    }
+
+    public FileTransferService(CompressionService compressionService,
+                               EncryptionService encryptionService,
+                               HotTierStore hotTierStore,
+                               MeterRegistry meterRegistry,
+                               @Value("${file.download.sendfile-min-size}") DataSize sendfileMinSize) {
+        this.compressionService = compressionService;
+        this.encryptionService = encryptionService;
+        this.hotTierStore = hotTierStore;
+        this.meterRegistry = meterRegistry;
+        this.sendfileMinSize = sendfileMinSize.toBytes();
+        this.copyTimer = transferTimer("copy", meterRegistry);
+        this.memoryTimer = transferTimer("memory", meterRegistry);
+        this.zipTimer = transferTimer("zip", meterRegistry);
+        this.downloadedBytes = Counter.builder("fileshare.download.bytes")
+                .description("Bytes sent to downloaders")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.transfers.active", downloadsInFlight, AtomicInteger::get)
+                .description("Transfers in progress")
+                .tag("direction", "download")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param codec content coding of the stored file, null if it holds the content as is
+     * @param size    size of the original content
+     * @param claimed whether the delivery finalizes a claimed download; only other responses may be
+     *                left to sendfile
+     */
+    public Delivery sendFile(Path path, String codec, long size, String contentType, String fileName, boolean claimed,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        downloadsInFlight.incrementAndGet();
+        try {
+            return writeResponse(path, codec, size, contentType, fileName, claimed, request, response);
+        } finally {
+            downloadsInFlight.decrementAndGet();
+            sample.stop(copyTimer);
+        }
+    }
+
+    /**
+     * Sends content held in memory; {@code lastModified} keeps validators stable once it is on disk.
+     */
+    public Delivery sendBuffer(ByteBuffer content, long lastModified, String contentType, String fileName,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        downloadsInFlight.incrementAndGet();
+        try {
+            long length = content.remaining();
+            String etag = etag(length, lastModified);
+            writeCommonHeaders(lastModified, etag, fileName, response);
+
+            String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+            if (rangeHeader == null || !ifRangeMatches(request, etag, lastModified)) {
+                response.setStatus(HttpStatus.OK.value());
+                response.setContentType(contentType);
+                response.setContentLengthLong(length);
+                if (hasBody(request)) {
+                    writeBuffer(content, 0, length, response.getOutputStream());
+                    response.flushBuffer();
+                }
+                return Delivery.whole(length);
+            }
+
+            List<HttpRange> ranges = parseRanges(rangeHeader, length, response);
+            if (ranges == null) {
+                return Delivery.NONE;
+            }
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            if (ranges.size() == 1) {
+                long start = ranges.get(0).getRangeStart(length);
+                long end = ranges.get(0).getRangeEnd(length);
+                response.setContentType(contentType);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+                response.setContentLengthLong(end - start + 1);
+                if (hasBody(request)) {
+                    writeBuffer(content, start, end - start + 1, response.getOutputStream());
+                }
+            } else {
+                writeMultipartRanges(contentType, length, ranges, request, response,
+                        (start, count, out) -> writeBuffer(content, start, count, out));
+            }
+            response.flushBuffer();
+            return new Delivery(length, spans(ranges, length));
+        } finally {
+            downloadsInFlight.decrementAndGet();
+            sample.stop(memoryTimer);
+        }
+    }
+
+    /**
+     * Streams the members of a bundle as one ZIP archive. Members that are already compressed
+     * are STORED using the CRC recorded at upload; the rest are deflated. The archive has no
+     * ranges, so a delivery of it is either the whole of it (reported with length 0) or nothing.
+     * HEAD gets the headers alone, so its members are not read.
+     *
+     * @param contentPath where a member not held in memory is on disk
+     */
+    public Delivery sendBundle(String fileName, List<File> members, Function<File, Path> contentPath,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        downloadsInFlight.incrementAndGet();
+        try {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(ZIP_CONTENT_TYPE);
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+            // Built per request, so there is no length to announce or range to resume from
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+            if (!hasBody(request)) {
+                // Committed now, so the connector doesn't announce the empty body as the length
+                response.flushBuffer();
+                return Delivery.NONE;
+            }
+
+            ZipOutputStream zip = new ZipOutputStream(response.getOutputStream());
+            for (File member : members) {
+                ZipEntry entry = new ZipEntry(member.getFileName());
+                entry.setTime(member.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                if (member.getCrc32() != null
+                        && compressionService.isIncompressible(member.getCodec(),
+                                Boolean.TRUE.equals(member.getInspected()), member.getContentType())) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(member.getSize());
+                    entry.setCompressedSize(member.getSize());
+                    entry.setCrc(member.getCrc32());
+                } else {
+                    entry.setMethod(ZipEntry.DEFLATED);
+                }
+
+                zip.putNextEntry(entry);
+                writeMember(member, contentPath, zip);
+                zip.closeEntry();
+            }
+            // Writes the central directory; the response stream itself is closed by the container
+            zip.finish();
+            response.flushBuffer();
+            return Delivery.whole(0);
+        } finally {
+            downloadsInFlight.decrementAndGet();
+            sample.stop(zipTimer);
+        }
+    }
+
+    private void writeMember(File member, Function<File, Path> contentPath, OutputStream out) throws IOException {
+        Optional<HotTierStore.Lease> hotContent = hotTierStore.open(member.getBlobDigest());
+        if (hotContent.isPresent()) {
+            try (HotTierStore.Lease lease = hotContent.get()) {
+                writeBuffer(lease.content(), 0, member.getSize(), out);
+            }
+            return;
+        }
+
+        Path path = contentPath.apply(member);
+        writeContent(path, member.getCodec(), 0, member.getSize(), out);
+    }
+
+    private Delivery writeResponse(Path path, String codec, long size, String contentType, String fileName,
+                                   boolean claimed, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long storedLength = encryptionService.storedLength(path);
+        long length = codec != null ? size : storedLength;
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        String etag = etag(storedLength, lastModified);
+        writeCommonHeaders(lastModified, etag, fileName, response);
+
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (codec != null) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+            // Whole-file requests from clients that can decode get the stored bytes as they are;
+            // ranges always refer to the decoded content
+            if (rangeHeader == null && acceptsEncoding(request.getHeader(HttpHeaders.ACCEPT_ENCODING), codec)) {
+                response.setStatus(HttpStatus.OK.value());
+                response.setHeader(HttpHeaders.ETAG, etag.substring(0, etag.length() - 1) + "-" + codec + "\"");
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, codec);
+                response.setContentType(contentType);
+                response.setContentLengthLong(storedLength);
+                writeBody(path, null, 0, storedLength, claimed, request, response);
+                return Delivery.whole(storedLength);
+            }
+        }
+
+        if (rangeHeader == null || !ifRangeMatches(request, etag, lastModified)) {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            writeBody(path, codec, 0, length, claimed, request, response);
+            return Delivery.whole(length);
+        }
+
+        List<HttpRange> ranges = parseRanges(rangeHeader, length, response);
+        if (ranges == null) {
+            return Delivery.NONE;
+        }
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        if (ranges.size() == 1) {
+            long start = ranges.get(0).getRangeStart(length);
+            long end = ranges.get(0).getRangeEnd(length);
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            response.setContentLengthLong(end - start + 1);
+            writeBody(path, codec, start, end - start + 1, claimed, request, response);
+            return new Delivery(length, List.of(new Span(start, end + 1)));
+        }
+
+        if (codec == null && !encryptionService.isEncrypted(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                writeMultipartRanges(contentType, length, ranges, request, response, (start, count, out) -> {
+                    FileUtil.transfer(channel, start, count, Channels.newChannel(out));
+                    downloadedBytes.increment(count);
+                });
+            }
+        } else {
+            writeMultipartRanges(contentType, length, ranges, request, response,
+                    (start, count, out) -> writeContent(path, codec, start, count, out));
+        }
+        response.flushBuffer();
+        return new Delivery(length, spans(ranges, length));
+    }
+
+    /**
+     * Writes a response body, leaving it to sendfile if nothing is finalized on it, it goes out as
+     * stored and the connector can.
+     */
+    private void writeBody(Path path, String codec, long start, long count, boolean claimed,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!hasBody(request)) {
+            return;
+        }
+        if (!claimed && codec == null && canSendfile(path, count, request)) {
+            // The connector copies file pages straight to the socket after the handler returns; it
+            // doesn't report what it sent, so these bytes are not counted in fileshare.download.bytes
+            request.setAttribute(SENDFILE_FILENAME_ATTR, path.toRealPath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, start + count);
+            return;
+        }
+        writeContent(path, codec, start, count, response.getOutputStream());
+        response.flushBuffer();
+    }
+
+    private boolean canSendfile(Path path, long count, HttpServletRequest request) {
+        // Small bodies are cheaper to write directly; encrypted files need decrypting
+        return Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))
+                && count >= sendfileMinSize
+                && !encryptionService.isEncrypted(path);
+    }
+
+    private static boolean hasBody(HttpServletRequest request) {
+        return !HttpMethod.HEAD.matches(request.getMethod());
+    }
+
+    private void writeCommonHeaders(long lastModified, String etag, String fileName, HttpServletResponse response) {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+    }
+
+    private String etag(long storedLength, long lastModified) {
+        return "\"" + Long.toHexString(storedLength) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * The requested ranges, or null after sending 416 if they don't fit the content.
+     */
+    private List<HttpRange> parseRanges(String rangeHeader, long length, HttpServletResponse response) {
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+            for (HttpRange range : ranges) {
+                // Validates the range against the content length
+                range.getRangeStart(length);
+            }
+            return ranges;
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return null;
+        }
+    }
+
+    /**
+     * Whether an {@code Accept-Encoding} header admits content stored with the given codec.
+     */
+    public boolean acceptsEncoding(String acceptEncoding, String codec) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.trim().split(";");
+            String coding = parts[0].trim();
+            if (!coding.equalsIgnoreCase(codec) && !coding.equals("*")) {
+                continue;
+            }
+
+            // A q-value of 0 means "not acceptable"
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range requires a strong comparison, so weak validators never match
+            return ifRange.equals(etag);
+        }
+        try {
+            long since = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return since >= 0 && lastModified / 1000 == since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void writeContent(Path path, String codec, long start, long count, OutputStream out) throws IOException {
+        if (codec == null) {
+            writeStored(path, start, count, out);
+        } else {
+            copyDecoded(path, codec, start, count, out);
+        }
+    }
+
+    private void writeStored(Path path, long start, long count, OutputStream out) throws IOException {
+        if (encryptionService.isEncrypted(path)) {
+            try (InputStream in = encryptionService.openStored(path, start)) {
+                copy(in, count, out, path);
+            }
+            downloadedBytes.increment(count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            FileUtil.transfer(channel, start, count, Channels.newChannel(out));
+            downloadedBytes.increment(count);
+        }
+    }
+
+    private void copyDecoded(Path path, String codec, long start, long count, OutputStream out) throws IOException {
+        try (InputStream in = compressionService.decompress(codec, encryptionService.openStored(path, 0))) {
+            // Encoded data can't be seeked; decode and discard up to the start of the range
+            in.skipNBytes(start);
+            copy(in, count, out, path);
+        }
+        downloadedBytes.increment(count);
+    }
+
+    private void copy(InputStream in, long count, OutputStream out, Path path) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long remaining = count;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Unexpected end of stored file " + path);
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private List<Span> spans(List<HttpRange> ranges, long length) {
+        return ranges.stream()
+                .map(range -> new Span(range.getRangeStart(length), range.getRangeEnd(length) + 1))
+                .toList();
+    }
+
+    private void writeBuffer(ByteBuffer content, long start, long count, OutputStream out) throws IOException {
+        ByteBuffer range = content.duplicate();
+        range.position((int) start).limit((int) (start + count));
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (range.hasRemaining()) {
+            channel.write(range);
+        }
+        downloadedBytes.increment(count);
+    }
+
+    private void writeMultipartRanges(String contentType, long length, List<HttpRange> ranges,
+                                      HttpServletRequest request, HttpServletResponse response,
+                                      RangeWriter writer) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        if (!hasBody(request)) {
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length);
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + start + "-" + end + "/" + length + "\r\n\r\n";
+            out.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+            writer.write(start, end - start + 1, out);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static Timer transferTimer(String mode, MeterRegistry meterRegistry) {
+        return Timer.builder("fileshare.download.transfer")
+                .description("Streaming phase of a download")
+                .tag("mode", mode)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
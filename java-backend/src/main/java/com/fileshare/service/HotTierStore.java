@@ -0,0 +1,222 @@
+package com.fileshare.service;
+
+import com.fileshare.util.DirectBufferPool;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * In-memory tier for small blobs, held in pooled direct buffers under a global byte budget.
+ *
+ * Entries are kept in insertion order so the oldest can be spilled to disk when the budget
+ * runs out. Readers pin an entry through a {@link Lease}; a removed or spilled entry's buffer
+ * only goes back to the pool once the last lease is closed. Writing to disk and the blob rows
+ * are left to {@link BlobStorageService}, which serializes them with its digest locks.
+ */
+@Component
+public class HotTierStore {
+
+    private final boolean enabled;
+    private final long maxFileSize;
+    private final boolean writeThrough;
+    private final DirectBufferPool pool;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    public static final class Entry {
+
+        private final String digest;
+        private final ByteBuffer content;
+        private final long createdAtMillis;
+        private boolean onDisk;
+        private boolean spilling;
+        private boolean removed;
+        private boolean freed;
+        private int pins;
+
+        private Entry(String digest, ByteBuffer content, boolean onDisk) {
+            this.digest = digest;
+            this.content = content;
+            this.createdAtMillis = System.currentTimeMillis();
+            this.onDisk = onDisk;
+        }
+
+        public String digest() {
+            return digest;
+        }
+
+        public ByteBuffer content() {
+            return content.asReadOnlyBuffer();
+        }
+
+        public long createdAtMillis() {
+            return createdAtMillis;
+        }
+    }
+
+    /**
+     * Read access to an entry's content; keeps the buffer from being reused until closed.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public ByteBuffer content() {
+            return entry.content();
+        }
+
+        public long lastModified() {
+            return entry.createdAtMillis();
+        }
+
+        @Override
+        public void close() {
+            synchronized (HotTierStore.this) {
+                if (!closed) {
+                    closed = true;
+                    entry.pins--;
+                    freeIfUnused(entry);
+                }
+            }
+        }
+    }
+
+    public HotTierStore(@Value("${file.hot-tier.enabled}") boolean enabled,
+                        @Value("${file.hot-tier.max-file-size}") DataSize maxFileSize,
+                        @Value("${file.hot-tier.budget}") DataSize budget,
+                        @Value("${file.hot-tier.write-through}") boolean writeThrough,
+                        MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxFileSize = Math.min(maxFileSize.toBytes(), budget.toBytes());
+        this.writeThrough = writeThrough;
+        this.pool = new DirectBufferPool(budget.toBytes(), (int) Math.min(this.maxFileSize, Integer.MAX_VALUE));
+
+        Gauge.builder("fileshare.hottier.bytes", pool, DirectBufferPool::inUseBytes)
+                .description("Direct memory holding hot tier content")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.hottier.allocated", pool, DirectBufferPool::allocatedBytes)
+                .description("Direct memory allocated by the hot tier pool, including free buffers")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.hottier.entries", this, HotTierStore::size)
+                .description("Blobs held in the hot tier")
+                .register(meterRegistry);
+    }
+
+    public boolean accepts(long size) {
+        return enabled && size <= maxFileSize;
+    }
+
+    public boolean isWriteThrough() {
+        return writeThrough;
+    }
+
+    /**
+     * A buffer for content of the given size, or null if the budget is used up.
+     */
+    public ByteBuffer tryAllocate(int size) {
+        return pool.acquire(size);
+    }
+
+    /**
+     * Returns a buffer that was allocated but never added as an entry.
+     */
+    public void free(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    /**
+     * Takes ownership of a filled buffer (positioned at its content) as the entry for a digest.
+     */
+    public synchronized void put(String digest, ByteBuffer content, boolean onDisk) {
+        Entry previous = entries.put(digest, new Entry(digest, content, onDisk));
+        if (previous != null) {
+            // Only possible if a release raced ahead of its eviction; the new entry wins
+            previous.removed = true;
+            freeIfUnused(previous);
+        }
+    }
+
+    public synchronized Optional<Lease> open(String digest) {
+        Entry entry = entries.get(digest);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        entry.pins++;
+        return Optional.of(new Lease(entry));
+    }
+
+    /**
+     * Marks the oldest entry not already being spilled and returns it, or empty if there is none.
+     */
+    public synchronized Optional<Entry> claimOldestForSpill() {
+        for (Entry entry : entries.values()) {
+            if (!entry.spilling) {
+                entry.spilling = true;
+                return Optional.of(entry);
+            }
+        }
+        return Optional.empty();
+    }
+
+    public synchronized boolean isCurrent(Entry entry) {
+        return entries.get(entry.digest) == entry;
+    }
+
+    public synchronized boolean isOnDisk(Entry entry) {
+        return entry.onDisk;
+    }
+
+    /**
+     * Gives an entry back after a failed spill so it can be tried again later.
+     */
+    public synchronized void cancelSpill(Entry entry) {
+        entry.spilling = false;
+    }
+
+    /**
+     * Drops a spilled entry from memory; reads go to its file from here on.
+     */
+    public synchronized void evict(Entry entry) {
+        entry.onDisk = true;
+        if (entries.get(entry.digest) == entry) {
+            entries.remove(entry.digest);
+        }
+        entry.removed = true;
+        freeIfUnused(entry);
+    }
+
+    /**
+     * Drops the entry of a blob whose last reference was released.
+     */
+    public synchronized void remove(String digest) {
+        Entry entry = entries.remove(digest);
+        if (entry != null) {
+            entry.removed = true;
+            freeIfUnused(entry);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void freeIfUnused(Entry entry) {
+        if (entry.removed && entry.pins == 0 && !entry.freed) {
+            entry.freed = true;
+            pool.release(entry.content);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.fileshare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves transfer bodies between the network and storage as {@link DataBuffer} streams for the
+ * reactive transfer server.
+ *
+ * Files are read and staged through {@link AsynchronousFileChannel}, one buffer at a time as
+ * the other side asks for it, so a slow client holds a connection and a buffer but no thread.
+ * Compressed and encrypted files are decoded by blocking reads on the given scheduler, again
+ * only as fast as the client consumes them.
+ */
+@Service
+@ConditionalOnProperty(name = "transfer.reactive.enabled", havingValue = "true")
+@Slf4j
+public class ReactiveTransferService {
+
+    private final CompressionService compressionService;
+    private final EncryptionService encryptionService;
+    private final int bufferSize;
+    private final AtomicInteger downloadsInFlight = new AtomicInteger();
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+    private final MeterRegistry meterRegistry;
+    private final Timer downloadTimer;
+    private final Counter downloadedBytes;
+    private final Counter uploadedBytes;
+
+    public ReactiveTransferService(CompressionService compressionService,
+                                   EncryptionService encryptionService,
+                                   @Value("${transfer.reactive.buffer-size}") DataSize bufferSize,
+                                   MeterRegistry meterRegistry) {
+        this.compressionService = compressionService;
+        this.encryptionService = encryptionService;
+        this.bufferSize = (int) bufferSize.toBytes();
+        this.meterRegistry = meterRegistry;
+        this.downloadTimer = Timer.builder("fileshare.download.transfer")
+                .description("Streaming phase of a download")
+                .tag("mode", "reactive")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.downloadedBytes = Counter.builder("fileshare.download.bytes")
+                .description("Bytes sent to downloaders")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.uploadedBytes = Counter.builder("fileshare.upload.bytes")
+                .description("Bytes received from uploaders")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.reactive.transfers.active", downloadsInFlight, AtomicInteger::get)
+                .description("Transfers in progress on the reactive transfer server")
+                .tag("direction", "download")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.reactive.transfers.active", uploadsInFlight, AtomicInteger::get)
+                .description("Transfers in progress on the reactive transfer server")
+                .tag("direction", "upload")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The stored bytes of a file, read as the response is written; decrypting blocks, so an
+     * encrypted file is read on {@code blocking}.
+     */
+    public Flux<DataBuffer> readStored(Path path, DataBufferFactory bufferFactory, Scheduler blocking) {
+        Flux<DataBuffer> content = encryptionService.isEncrypted(path)
+                ? DataBufferUtils.readInputStream(() -> encryptionService.openStored(path, 0), bufferFactory, bufferSize)
+                        .subscribeOn(blocking)
+                : DataBufferUtils.read(path, bufferFactory, bufferSize);
+        return content.doOnNext(buffer -> downloadedBytes.increment(buffer.readableByteCount()));
+    }
+
+    /**
+     * Length of a file's stored bytes, as {@link #readStored} sends them.
+     */
+    public long storedLength(Path path) throws IOException {
+        return encryptionService.storedLength(path);
+    }
+
+    /**
+     * The decoded content of a compressed file; decoding blocks, so it runs on {@code blocking}.
+     */
+    public Flux<DataBuffer> readDecoded(Path path, String codec, long size, DataBufferFactory bufferFactory,
+                                        Scheduler blocking) {
+        AtomicLong sent = new AtomicLong();
+        return DataBufferUtils.readInputStream(() -> compressionService.decompress(codec, encryptionService.openStored(path, 0)),
+                        bufferFactory, bufferSize)
+                .doOnNext(buffer -> {
+                    sent.addAndGet(buffer.readableByteCount());
+                    downloadedBytes.increment(buffer.readableByteCount());
+                })
+                .concatWith(Mono.defer(() -> sent.get() == size
+                        ? Mono.empty()
+                        : Mono.error(new EOFException("Unexpected end of encoded file " + path))))
+                .subscribeOn(blocking);
+    }
+
+    /**
+     * Content held in memory as one buffer; the caller keeps it alive until the response is written.
+     */
+    public Flux<DataBuffer> readBuffer(ByteBuffer content, DataBufferFactory bufferFactory) {
+        return Flux.defer(() -> {
+            downloadedBytes.increment(content.remaining());
+            return Flux.just(bufferFactory.wrap(content));
+        });
+    }
+
+    /**
+     * Times a download's write and counts it as in flight until it ends, however it ends.
+     */
+    public Mono<Void> trackDownload(Mono<Void> transfer) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            downloadsInFlight.incrementAndGet();
+            return transfer.doFinally(signal -> {
+                downloadsInFlight.decrementAndGet();
+                sample.stop(downloadTimer);
+            });
+        });
+    }
+
+    /**
+     * Writes a request body into a pre-sized staging file.
+     *
+     * @param length the declared Content-Length; a shorter body fails the upload
+     */
+    public Mono<Void> receive(Flux<DataBuffer> body, Path stagingFile, long length) {
+        // HTTP framing ends the body at Content-Length, so it can only fall short of it
+        AtomicLong received = new AtomicLong();
+        Flux<DataBuffer> counted = body.doOnNext(buffer -> received.addAndGet(buffer.readableByteCount()));
+
+        return Mono.using(
+                        () -> AsynchronousFileChannel.open(stagingFile, StandardOpenOption.WRITE),
+                        channel -> DataBufferUtils.write(counted, channel, 0)
+                                .map(DataBufferUtils::release)
+                                .then(),
+                        this::closeQuietly)
+                .then(Mono.defer(() -> received.get() == length
+                        ? Mono.<Void>empty()
+                        : Mono.error(new IllegalArgumentException("Body is shorter than its Content-Length (" + length + " bytes)"))))
+                .doOnSubscribe(subscription -> uploadsInFlight.incrementAndGet())
+                .doFinally(signal -> {
+                    uploadsInFlight.decrementAndGet();
+                    uploadedBytes.increment(received.get());
+                });
+    }
+
+    private void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing staging file channel", e);
+        }
+    }
+}
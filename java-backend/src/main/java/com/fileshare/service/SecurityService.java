@@ -2,106 +2,278 @@ package com.fileshare.service;
 
 import com.fileshare.model.FailedAttempt;
 import com.fileshare.repository.FailedAttemptRepository;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.Optional;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+/**
+ * Per-IP failed attempt tracking with exponential backoff.
+ *
+ * State lives in memory and every update is a single atomic {@link ConcurrentHashMap#compute}
+ * on an immutable snapshot, so concurrent failures from one IP can't lose updates and a check
+ * costs no database round trip. Changed IPs are written to {@code failed_attempts} in periodic
+ * batches and reloaded at startup. Idle entries are evicted periodically, and once more than
+ * {@code file.failed-attempts.max-tracked} IPs are tracked the oldest unblocked ones are flushed
+ * and dropped, so a flood of distinct addresses can't grow the map without bound.
+ */
 @Service
-@RequiredArgsConstructor
+@Slf4j
 public class SecurityService {
 
+    private static final int FLUSH_BATCH_SIZE = 500;
+
     private final FailedAttemptRepository failedAttemptRepository;
-    
+    private final Map<String, AttemptState> attempts = new ConcurrentHashMap<>();
+    private final Set<String> dirtyIps = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean trimming = new AtomicBoolean();
+    private final Counter failureCounter;
+    private final Counter blockCounter;
+    private final Counter rejectedCounter;
+
     @Value("${file.failed-attempts.max}")
     private int maxFailedAttempts;
-    
+
     @Value("${file.failed-attempts.initial-timeout-seconds}")
     private int initialTimeoutSeconds;
-    
+
     @Value("${file.failed-attempts.timeout-multiplier}")
     private int timeoutMultiplier;
-    
+
+    @Value("${file.failed-attempts.idle-eviction-seconds}")
+    private long idleEvictionSeconds;
+
+    @Value("${file.failed-attempts.max-tracked}")
+    private int maxTrackedIps;
+
+    private record AttemptState(int attempts, int timeoutDuration, long timeoutUntil, long lastAttemptAt) {
+
+        boolean isBlocked(long now) {
+            return timeoutUntil > now;
+        }
+
+        boolean isTimeoutOver(long now) {
+            return timeoutUntil != 0 && timeoutUntil <= now;
+        }
+    }
+
+    public SecurityService(FailedAttemptRepository failedAttemptRepository, MeterRegistry meterRegistry) {
+        this.failedAttemptRepository = failedAttemptRepository;
+        this.failureCounter = Counter.builder("fileshare.verify.failures")
+                .description("Failed connection code attempts")
+                .register(meterRegistry);
+        this.blockCounter = Counter.builder("fileshare.verify.blocks")
+                .description("Timeouts imposed on an IP after too many failures")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("fileshare.verify.rejected")
+                .description("Attempts rejected because the IP was blocked")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void loadState() {
+        // Restore IPs that are blocked or could still accumulate towards a block
+        LocalDateTime now = LocalDateTime.now();
+        failedAttemptRepository
+                .findByLastAttemptAtAfterOrTimeoutUntilAfter(now.minusSeconds(idleEvictionSeconds), now)
+                .forEach(attempt -> attempts.put(attempt.getIp(), new AttemptState(
+                        attempt.getAttempts(),
+                        attempt.getTimeoutDuration() != null ? attempt.getTimeoutDuration() : 0,
+                        attempt.getTimeoutUntil() != null ? toMillis(attempt.getTimeoutUntil()) : 0,
+                        toMillis(attempt.getLastAttemptAt()))));
+        trimToCapacity();
+    }
+
     public void recordFailedAttempt(String ip) {
-        Optional<FailedAttempt> existingAttemptOpt = failedAttemptRepository.findByIp(ip);
-        
-        if (existingAttemptOpt.isPresent()) {
-            FailedAttempt attempt = existingAttemptOpt.get();
-            attempt.setAttempts(attempt.getAttempts() + 1);
-            attempt.setLastAttemptAt(LocalDateTime.now());
-            
+        long now = System.currentTimeMillis();
+        attempts.compute(ip, (key, state) -> {
+            if (state == null) {
+                return new AttemptState(1, 0, 0, now);
+            }
+
+            int count = state.attempts() + 1;
+            int timeoutDuration = state.timeoutDuration();
+            long timeoutUntil = state.timeoutUntil();
+
             // If max attempts reached, set timeout
-            if (attempt.getAttempts() >= maxFailedAttempts) {
-                int timeoutDuration = initialTimeoutSeconds;
-                
+            if (count >= maxFailedAttempts) {
                 // If already had timeouts, increase exponentially
-                if (attempt.getTimeoutDuration() != null && attempt.getTimeoutDuration() > 0) {
-                    timeoutDuration = attempt.getTimeoutDuration() * timeoutMultiplier;
-                }
-                
-                attempt.setTimeoutDuration(timeoutDuration);
-                attempt.setTimeoutUntil(LocalDateTime.now().plusSeconds(timeoutDuration));
+                timeoutDuration = timeoutDuration > 0 ? timeoutDuration * timeoutMultiplier : initialTimeoutSeconds;
+                timeoutUntil = now + timeoutDuration * 1000L;
+                blockCounter.increment();
             }
-            
-            failedAttemptRepository.save(attempt);
-        } else {
-            FailedAttempt newAttempt = FailedAttempt.builder()
-                    .ip(ip)
-                    .attempts(1)
-                    .lastAttemptAt(LocalDateTime.now())
-                    .build();
-            failedAttemptRepository.save(newAttempt);
+
+            return new AttemptState(count, timeoutDuration, timeoutUntil, now);
+        });
+        dirtyIps.add(ip);
+        failureCounter.increment();
+
+        if (attempts.size() > maxTrackedIps) {
+            trimToCapacity();
         }
     }
-    
+
     public void resetFailedAttempts(String ip) {
-        Optional<FailedAttempt> attemptOpt = failedAttemptRepository.findByIp(ip);
-        
-        if (attemptOpt.isPresent()) {
-            FailedAttempt attempt = attemptOpt.get();
-            attempt.setAttempts(0);
-            attempt.setTimeoutUntil(null);
-            attempt.setTimeoutDuration(0);
-            failedAttemptRepository.save(attempt);
+        AttemptState previous = attempts.get(ip);
+        if (previous != null && (previous.attempts() > 0 || previous.timeoutDuration() > 0)) {
+            attempts.computeIfPresent(ip, (key, state) -> new AttemptState(0, 0, 0, state.lastAttemptAt()));
+            dirtyIps.add(ip);
         }
     }
-    
+
     public boolean isIpBlocked(String ip) {
-        Optional<FailedAttempt> attemptOpt = failedAttemptRepository.findByIp(ip);
-        
-        if (attemptOpt.isPresent()) {
-            FailedAttempt attempt = attemptOpt.get();
-            
-            // Check if IP is in timeout
-            if (attempt.getTimeoutUntil() != null && 
-                attempt.getTimeoutUntil().isAfter(LocalDateTime.now())) {
-                return true;
-            }
-            
-            // If timeout has expired, reset the count
-            if (attempt.getTimeoutUntil() != null && 
-                attempt.getTimeoutUntil().isBefore(LocalDateTime.now())) {
-                resetFailedAttempts(ip);
-            }
+        AttemptState state = attempts.get(ip);
+        if (state == null) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+
+        // Check if IP is in timeout
+        if (state.isBlocked(now)) {
+            rejectedCounter.increment();
+            return true;
         }
-        
+
+        // If timeout has expired, reset the count but remember the duration for the next backoff step
+        if (state.isTimeoutOver(now)) {
+            attempts.computeIfPresent(ip, (key, current) -> current.isTimeoutOver(now)
+                    ? new AttemptState(0, current.timeoutDuration(), 0, current.lastAttemptAt())
+                    : current);
+            dirtyIps.add(ip);
+        }
+
         return false;
     }
-    
+
     public long getRemainingTimeoutSeconds(String ip) {
-        Optional<FailedAttempt> attemptOpt = failedAttemptRepository.findByIp(ip);
-        
-        if (attemptOpt.isPresent() && attemptOpt.get().getTimeoutUntil() != null) {
-            LocalDateTime now = LocalDateTime.now();
-            LocalDateTime timeoutUntil = attemptOpt.get().getTimeoutUntil();
-            
-            if (timeoutUntil.isAfter(now)) {
-                return java.time.Duration.between(now, timeoutUntil).getSeconds();
-            }
+        AttemptState state = attempts.get(ip);
+        long now = System.currentTimeMillis();
+
+        if (state != null && state.isBlocked(now)) {
+            return (state.timeoutUntil() - now) / 1000;
         }
-        
+
         return 0;
     }
-}
\ No newline at end of file
+
+    @Scheduled(fixedDelayString = "${file.failed-attempts.flush-interval-ms}")
+    public void flushAndEvict() {
+        flush();
+        evictIdle();
+    }
+
+    @PreDestroy
+    public void flush() {
+        List<String> ips = new ArrayList<>();
+        Iterator<String> iterator = dirtyIps.iterator();
+        while (iterator.hasNext()) {
+            // Unmark before reading the state so a concurrent update marks the IP again
+            ips.add(iterator.next());
+            iterator.remove();
+        }
+
+        for (int from = 0; from < ips.size(); from += FLUSH_BATCH_SIZE) {
+            List<String> batch = ips.subList(from, Math.min(from + FLUSH_BATCH_SIZE, ips.size()));
+            try {
+                persist(batch);
+            } catch (RuntimeException e) {
+                // Keep the counters in memory and retry on the next flush
+                dirtyIps.addAll(batch);
+                log.error("Error persisting failed attempts", e);
+            }
+        }
+    }
+
+    private void persist(List<String> ips) {
+        Map<String, FailedAttempt> existing = failedAttemptRepository.findByIpIn(ips).stream()
+                .collect(Collectors.toMap(FailedAttempt::getIp, Function.identity()));
+
+        List<FailedAttempt> rows = new ArrayList<>(ips.size());
+        for (String ip : ips) {
+            AttemptState state = attempts.get(ip);
+            if (state == null) {
+                continue;
+            }
+
+            FailedAttempt row = existing.getOrDefault(ip, FailedAttempt.builder().ip(ip).build());
+            row.setAttempts(state.attempts());
+            row.setLastAttemptAt(toLocalDateTime(state.lastAttemptAt()));
+            row.setTimeoutUntil(state.timeoutUntil() != 0 ? toLocalDateTime(state.timeoutUntil()) : null);
+            row.setTimeoutDuration(state.timeoutDuration());
+            rows.add(row);
+        }
+
+        failedAttemptRepository.saveAll(rows);
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        long idleBefore = now - idleEvictionSeconds * 1000;
+
+        // Entry-set removal only succeeds if the state was not replaced in the meantime
+        attempts.entrySet().removeIf(entry -> entry.getValue().lastAttemptAt() < idleBefore
+                && !entry.getValue().isBlocked(now)
+                && !dirtyIps.contains(entry.getKey()));
+    }
+
+    private void trimToCapacity() {
+        // One thread trims; the others keep going over the cap until it is done
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Trim a tenth below the cap so the sort is not repeated for every new IP
+            int excess = attempts.size() - maxTrackedIps + maxTrackedIps / 10;
+            if (excess <= 0) {
+                return;
+            }
+
+            // Persist first so dropped IPs keep their counters in the database
+            flush();
+
+            // Unblocked IPs go before blocked ones, least recently seen first
+            long now = System.currentTimeMillis();
+            attempts.entrySet().stream()
+                    .sorted(Comparator.comparing((Map.Entry<String, AttemptState> entry) ->
+                                    entry.getValue().isBlocked(now))
+                            .thenComparingLong(entry -> entry.getValue().lastAttemptAt()))
+                    .limit(excess)
+                    .toList()
+                    // Entries that changed since the sort, or failed to flush, are kept
+                    .forEach(entry -> {
+                        if (!dirtyIps.contains(entry.getKey())) {
+                            attempts.remove(entry.getKey(), entry.getValue());
+                        }
+                    });
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    private static long toMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,122 @@
+package com.fileshare.service;
+
+import com.fileshare.model.Blob;
+import com.fileshare.model.File;
+import com.fileshare.repository.BlobRepository;
+import com.fileshare.repository.FileRepository;
+import com.fileshare.service.BlobStorageService.StoredBlob;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * One-off migration of stored files into the current storage layout, run with
+ * {@code --file.storage.migrate=true}.
+ *
+ * Every blob is moved to its fan-out path (on its current volume, or a selected one if it
+ * lives outside the configured volumes) and the paths of its files are updated. Waiting files
+ * stored before content addressing are imported into the blob store. Each step is idempotent,
+ * so an interrupted run can simply be repeated. The application exits when it is done.
+ */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "file.storage.migrate", havingValue = "true")
+@Slf4j
+public class StorageMigrationRunner implements ApplicationRunner {
+
+    private static final String STATUS_WAITING = "WAITING_FOR_DOWNLOAD";
+
+    private final BlobStorageService blobStorageService;
+    private final BlobRepository blobRepository;
+    private final FileRepository fileRepository;
+    private final ApplicationContext applicationContext;
+
+    @Value("${file.storage.migrate-batch-size}")
+    private int batchSize;
+
+    private int relocated;
+    private int imported;
+    private int failed;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        relocateBlobs();
+        importLegacyFiles();
+
+        log.info("Storage migration finished: {} blobs relocated, {} files imported, {} failed",
+                relocated, imported, failed);
+        int exitCode = SpringApplication.exit(applicationContext, () -> failed == 0 ? 0 : 1);
+        System.exit(exitCode);
+    }
+
+    private void relocateBlobs() {
+        // Relocation changes paths, not digests, so digest order pages stably
+        Page<Blob> page = blobRepository.findAll(PageRequest.of(0, batchSize, Sort.by("digest")));
+        while (page.hasContent()) {
+            for (Blob blob : page) {
+                try {
+                    Optional<Path> target = blobStorageService.relocate(blob.getDigest());
+                    if (target.isPresent()) {
+                        relocated++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failed++;
+                    log.error("Error relocating blob {}", blob.getDigest(), e);
+                }
+            }
+            if (!page.hasNext()) {
+                break;
+            }
+            page = blobRepository.findAll(page.nextPageable());
+        }
+    }
+
+    private void importLegacyFiles() {
+        // Keyset paging: files that fail to import stay in the result set
+        long lastId = 0;
+        List<File> files;
+        while (!(files = fileRepository.findByBlobDigestIsNullAndEntryCountIsNullAndStatusAndIdGreaterThanOrderByIdAsc(
+                STATUS_WAITING, lastId, PageRequest.of(0, batchSize))).isEmpty()) {
+            for (File file : files) {
+                lastId = file.getId();
+                try {
+                    importFile(file);
+                    imported++;
+                } catch (IOException | RuntimeException e) {
+                    failed++;
+                    log.error("Error importing file {}", file.getId(), e);
+                }
+            }
+        }
+    }
+
+    private void importFile(File file) throws IOException {
+        StoredBlob blob = blobStorageService.importFile(Paths.get(file.getPath()), file.getContentType());
+        file.setBlobDigest(blob.digest());
+        file.setPath(blob.path().toString());
+        file.setCodec(blob.codec());
+        file.setStoredSize(blob.storedSize());
+        file.setInspected(blob.inspected());
+        try {
+            fileRepository.save(file);
+        } catch (RuntimeException e) {
+            // The original is gone; keep the blob so the content can still be recovered
+            throw new IllegalStateException("Content stored at " + blob.path() + " but the file row was not updated", e);
+        }
+    }
+}
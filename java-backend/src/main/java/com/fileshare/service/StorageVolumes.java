@@ -0,0 +1,176 @@
+package com.fileshare.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The mount points blobs are spread over.
+ *
+ * A volume is chosen per blob either by weighted rendezvous hashing of a key (stable, and
+ * proportional to the configured weights) or by most usable space. Volumes that would drop
+ * below the free space reserve are skipped while any other volume has room. Inside a volume,
+ * blob files are fanned out into nested directories named after the leading hex digits of
+ * the digest, so no directory grows beyond a few hundred entries.
+ */
+@Component
+public class StorageVolumes {
+
+    private static final String BLOB_DIR = "blobs";
+    private static final String STAGING_DIR = ".staging";
+    // Hex digits per fan-out directory level: 256 entries per level
+    private static final int PREFIX_LENGTH = 2;
+
+    private final List<Volume> volumes;
+    private final boolean freeSpacePlacement;
+    private final int fanOutLevels;
+    private final long reserveBytes;
+
+    public record Volume(Path root, int weight) {
+
+        public long usableSpace() {
+            try {
+                return Files.getFileStore(root).getUsableSpace();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        public long totalSpace() {
+            try {
+                return Files.getFileStore(root).getTotalSpace();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+    }
+
+    public StorageVolumes(@Value("${file.storage.volumes}") String roots,
+                          @Value("${file.storage.volume-weights}") String weights,
+                          @Value("${file.storage.placement}") String placement,
+                          @Value("${file.storage.fan-out-levels}") int fanOutLevels,
+                          @Value("${file.reaper.min-free-space}") DataSize reserve,
+                          MeterRegistry meterRegistry) {
+        String[] rootList = roots.split(",");
+        String[] weightList = weights.isBlank() ? new String[0] : weights.split(",");
+        if (weightList.length != 0 && weightList.length != rootList.length) {
+            throw new IllegalArgumentException("file.storage.volume-weights must list one weight per volume");
+        }
+
+        List<Volume> configured = new ArrayList<>();
+        for (int i = 0; i < rootList.length; i++) {
+            int weight = weightList.length != 0 ? Integer.parseInt(weightList[i].trim()) : 1;
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Volume weights must be positive");
+            }
+            configured.add(new Volume(Paths.get(rootList[i].trim()).toAbsolutePath().normalize(), weight));
+        }
+
+        if (!"weighted".equals(placement) && !"free-space".equals(placement)) {
+            throw new IllegalArgumentException("file.storage.placement must be 'weighted' or 'free-space'");
+        }
+
+        this.volumes = List.copyOf(configured);
+        this.freeSpacePlacement = "free-space".equals(placement);
+        this.fanOutLevels = fanOutLevels;
+        this.reserveBytes = reserve.toBytes();
+
+        for (Volume volume : volumes) {
+            Gauge.builder("fileshare.storage.free", volume, Volume::usableSpace)
+                    .description("Usable space on a storage volume")
+                    .tag("volume", volume.root().toString())
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+            Gauge.builder("fileshare.storage.total", volume, Volume::totalSpace)
+                    .description("Total size of a storage volume")
+                    .tag("volume", volume.root().toString())
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+        }
+    }
+
+    @PostConstruct
+    public void createDirectories() throws IOException {
+        for (Volume volume : volumes) {
+            Files.createDirectories(volume.root().resolve(BLOB_DIR));
+            Files.createDirectories(volume.root().resolve(STAGING_DIR));
+        }
+    }
+
+    public List<Volume> volumes() {
+        return volumes;
+    }
+
+    /**
+     * Picks the volume for new content of the given size; {@code key} drives weighted placement.
+     */
+    public Volume select(String key, long size) {
+        List<Volume> candidates = volumes.stream()
+                .filter(volume -> volume.usableSpace() - size >= reserveBytes)
+                .toList();
+        if (candidates.isEmpty()) {
+            // Everything is past the reserve; the reaper is evicting, use whatever space is left
+            return mostFreeSpace(volumes);
+        }
+        if (freeSpacePlacement || candidates.size() == 1) {
+            return mostFreeSpace(candidates);
+        }
+        return candidates.stream()
+                .max(Comparator.comparingDouble(volume -> rendezvousScore(key, volume)))
+                .orElseThrow();
+    }
+
+    /**
+     * The configured volume a path lives on, if any.
+     */
+    public Optional<Volume> volumeOf(Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        return volumes.stream()
+                .filter(volume -> normalized.startsWith(volume.root()))
+                .max(Comparator.comparingInt(volume -> volume.root().getNameCount()));
+    }
+
+    public Path blobPath(Volume volume, String digest, String suffix) {
+        Path dir = volume.root().resolve(BLOB_DIR);
+        for (int level = 0; level < fanOutLevels; level++) {
+            dir = dir.resolve(digest.substring(level * PREFIX_LENGTH, (level + 1) * PREFIX_LENGTH));
+        }
+        return dir.resolve(digest + suffix);
+    }
+
+    public Path stagingDir(Volume volume) {
+        return volume.root().resolve(STAGING_DIR);
+    }
+
+    private Volume mostFreeSpace(List<Volume> candidates) {
+        return candidates.stream()
+                .max(Comparator.comparingLong(Volume::usableSpace))
+                .orElseThrow();
+    }
+
+    private double rendezvousScore(String key, Volume volume) {
+        // Weighted rendezvous hashing: -w / ln(u) for a uniform u in (0, 1) derived from key and volume
+        long hash = mix(((long) key.hashCode() << 32) ^ volume.root().toString().hashCode());
+        double uniform = ((hash >>> 11) + 0.5) * 0x1.0p-53;
+        return -volume.weight() / Math.log(uniform);
+    }
+
+    private static long mix(long value) {
+        // SplitMix64 finalizer
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
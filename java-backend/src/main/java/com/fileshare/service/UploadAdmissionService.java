@@ -0,0 +1,253 @@
+package com.fileshare.service;
+
+import com.fileshare.exception.UploadRejectedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides whether an upload may start, before any of its body is read.
+ *
+ * An upload is admitted while fewer than {@code max-concurrent} are running and the declared
+ * lengths of those running stay within {@code max-in-flight}; one upload larger than that on
+ * its own is admitted once nothing else runs. Uploads that don't fit wait in a bounded FIFO
+ * queue for at most {@code queue-timeout}, and nobody overtakes the head of the queue, so
+ * large uploads are not starved by a stream of small ones. Uploads are rejected right away
+ * when the queue is full or when no storage volume would keep {@code min-free-space} after
+ * taking them and everything in flight.
+ *
+ * A queued upload waits on its request thread, so on platform threads running and queued
+ * uploads are limited at startup to half of Tomcat's worker pool.
+ */
+@Service
+public class UploadAdmissionService {
+
+    private final StorageVolumes storageVolumes;
+    private final int maxConcurrent;
+    private final long maxInFlightBytes;
+    private final long unknownLengthBytes;
+    private final long minFreeSpace;
+    private final int maxQueue;
+    private final Duration queueTimeout;
+    private final Duration retryAfter;
+
+    // FIFO of waiting uploads; guarded by lock, as are active and inFlightBytes
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private int active;
+    private long inFlightBytes;
+
+    // Copies for the gauges, so a scrape never takes the lock
+    private final AtomicInteger queuedGauge = new AtomicInteger();
+    private final AtomicInteger activeGauge = new AtomicInteger();
+    private final AtomicLong inFlightGauge = new AtomicLong();
+    private final MeterRegistry meterRegistry;
+    private final Timer waitTimer;
+
+    private record Waiter(Condition ready, long bytes) {
+    }
+
+    /**
+     * An admitted upload's share of the limits, returned when closed.
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final long bytes;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(bytes);
+            }
+        }
+    }
+
+    public UploadAdmissionService(StorageVolumes storageVolumes,
+                                  @Value("${upload.admission.max-concurrent}") int maxConcurrent,
+                                  @Value("${upload.admission.max-in-flight}") DataSize maxInFlight,
+                                  @Value("${upload.admission.unknown-length}") DataSize unknownLength,
+                                  @Value("${upload.admission.min-free-space}") DataSize minFreeSpace,
+                                  @Value("${upload.admission.max-queue}") int maxQueue,
+                                  @Value("${upload.admission.queue-timeout}") Duration queueTimeout,
+                                  @Value("${upload.admission.retry-after}") Duration retryAfter,
+                                  @Value("${server.tomcat.threads.max}") int maxRequestThreads,
+                                  @Value("${threads.virtual.enabled}") boolean virtualThreads,
+                                  MeterRegistry meterRegistry) {
+        if (!virtualThreads && maxConcurrent + maxQueue > maxRequestThreads / 2) {
+            // Otherwise waiting uploads could take every worker and starve downloads
+            throw new IllegalStateException("upload.admission.max-concurrent plus upload.admission.max-queue "
+                    + "must not exceed half of server.tomcat.threads.max");
+        }
+        this.storageVolumes = storageVolumes;
+        this.maxConcurrent = maxConcurrent;
+        this.maxInFlightBytes = maxInFlight.toBytes();
+        this.unknownLengthBytes = unknownLength.toBytes();
+        this.minFreeSpace = minFreeSpace.toBytes();
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+        this.retryAfter = retryAfter;
+        this.meterRegistry = meterRegistry;
+
+        this.waitTimer = Timer.builder("fileshare.upload.admission.wait")
+                .description("Time uploads spent queued for admission")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("fileshare.upload.admission.queued", queuedGauge, AtomicInteger::get)
+                .description("Uploads waiting for admission")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.upload.admission.active", activeGauge, AtomicInteger::get)
+                .description("Admitted uploads in progress")
+                .register(meterRegistry);
+        Gauge.builder("fileshare.upload.admission.bytes", inFlightGauge, AtomicLong::get)
+                .description("Declared length of admitted uploads in progress")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Admits an upload, waiting in the queue for its turn if the limits are reached.
+     *
+     * @param contentLength declared length of the body, -1 if unknown
+     * @throws UploadRejectedException if it can't be admitted in time
+     */
+    public Permit acquire(long contentLength) throws InterruptedException {
+        long bytes = charge(contentLength);
+
+        lock.lock();
+        try {
+            Permit permit = admitNow(bytes);
+            if (permit != null) {
+                return permit;
+            }
+            if (queue.size() >= maxQueue) {
+                throw reject("queue_full", "Too many uploads in progress");
+            }
+
+            Waiter waiter = new Waiter(lock.newCondition(), bytes);
+            queue.addLast(waiter);
+            queuedGauge.set(queue.size());
+            long started = System.nanoTime();
+            try {
+                long remaining = queueTimeout.toNanos();
+                while (queue.peekFirst() != waiter || !fits(bytes)) {
+                    if (remaining <= 0) {
+                        throw reject("timeout", "Timed out waiting for upload capacity");
+                    }
+                    remaining = waiter.ready().awaitNanos(remaining);
+                }
+                return admit(bytes);
+            } finally {
+                waitTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                queue.remove(waiter);
+                queuedGauge.set(queue.size());
+                // Whether this one was admitted or gave up, the next in line may fit now
+                signalHead();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admits an upload only if it can start right away, for callers that must not block.
+     *
+     * @throws UploadRejectedException if it can't
+     */
+    public Permit tryAcquire(long contentLength) {
+        long bytes = charge(contentLength);
+
+        lock.lock();
+        try {
+            Permit permit = admitNow(bytes);
+            if (permit == null) {
+                throw reject("busy", "Too many uploads in progress");
+            }
+            return permit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A permit if the upload needn't queue, null if it must; rejects it if storage is short.
+     */
+    private Permit admitNow(long bytes) {
+        if (!hasFreeSpace(bytes)) {
+            throw reject("disk_space", "Not enough free storage space");
+        }
+        return queue.isEmpty() && fits(bytes) ? admit(bytes) : null;
+    }
+
+    private void release(long bytes) {
+        lock.lock();
+        try {
+            active--;
+            inFlightBytes -= bytes;
+            activeGauge.set(active);
+            inFlightGauge.set(inFlightBytes);
+            signalHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit admit(long bytes) {
+        active++;
+        inFlightBytes += bytes;
+        activeGauge.set(active);
+        inFlightGauge.set(inFlightBytes);
+        return new Permit(bytes);
+    }
+
+    private long charge(long contentLength) {
+        return contentLength >= 0 ? contentLength : unknownLengthBytes;
+    }
+
+    private boolean fits(long bytes) {
+        // An upload over the byte limit on its own still runs, alone
+        return active < maxConcurrent && (inFlightBytes + bytes <= maxInFlightBytes || active == 0);
+    }
+
+    private boolean hasFreeSpace(long bytes) {
+        if (minFreeSpace <= 0) {
+            return true;
+        }
+        // Admitted uploads haven't necessarily written anything yet; count them as if they had
+        long needed = inFlightBytes + bytes + minFreeSpace;
+        return storageVolumes.volumes().stream().anyMatch(volume -> volume.usableSpace() >= needed);
+    }
+
+    private void signalHead() {
+        Waiter head = queue.peekFirst();
+        if (head != null) {
+            head.ready().signal();
+        }
+    }
+
+    private UploadRejectedException reject(String reason, String message) {
+        Counter.builder("fileshare.upload.admission.rejected")
+                .description("Uploads turned away before reading their body")
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+        return new UploadRejectedException(reason, message, retryAfter);
+    }
+}
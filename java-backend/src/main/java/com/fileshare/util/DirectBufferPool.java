@@ -0,0 +1,82 @@
+package com.fileshare.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers in power-of-two size classes under a fixed byte budget.
+ *
+ * Released buffers are kept for reuse in their class. When a class has no free buffer and
+ * the budget is used up, free buffers of other classes are dropped to make room; their
+ * memory is returned when they are garbage collected, so the JVM's direct memory limit
+ * should leave some headroom above the budget.
+ */
+public class DirectBufferPool {
+
+    // Smallest class is 4KB
+    private static final int MIN_CLASS_SHIFT = 12;
+
+    private final long budget;
+    private final int maxBufferSize;
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    private long allocated;
+    private long inUse;
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(long budget, int maxBufferSize) {
+        this.budget = budget;
+        this.maxBufferSize = maxBufferSize;
+        this.free = new ArrayDeque[classIndex(maxBufferSize) + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * A buffer with {@code size} bytes remaining, or null if the budget has no room for it.
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        if (size > maxBufferSize) {
+            throw new IllegalArgumentException("Buffer of " + size + " bytes exceeds the pool maximum of " + maxBufferSize);
+        }
+
+        int index = classIndex(size);
+        ByteBuffer buffer = free[index].poll();
+        if (buffer == null) {
+            int capacity = 1 << (index + MIN_CLASS_SHIFT);
+            // Largest classes first: fewer buffers to drop
+            for (int i = free.length - 1; i >= 0 && allocated + capacity > budget; i--) {
+                while (!free[i].isEmpty() && allocated + capacity > budget) {
+                    allocated -= free[i].poll().capacity();
+                }
+            }
+            if (allocated + capacity > budget) {
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocated += capacity;
+        }
+
+        inUse += buffer.capacity();
+        return buffer.clear().limit(size);
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        inUse -= buffer.capacity();
+        free[classIndex(buffer.capacity())].push(buffer);
+    }
+
+    public synchronized long allocatedBytes() {
+        return allocated;
+    }
+
+    public synchronized long inUseBytes() {
+        return inUse;
+    }
+
+    private static int classIndex(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(0, shift - MIN_CLASS_SHIFT);
+    }
+}
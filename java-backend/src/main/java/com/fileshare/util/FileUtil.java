@@ -1,15 +1,23 @@
 package com.fileshare.util;
 
+import com.fileshare.exception.FileTooLargeException;
+import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 
 public class FileUtil {
     
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
     public static Path saveFile(String uploadDir, String fileName, MultipartFile file) throws IOException {
         Path uploadPath = Paths.get(uploadDir);
         
@@ -17,12 +25,37 @@ public class FileUtil {
             Files.createDirectories(uploadPath);
         }
         
-        Path filePath = uploadPath.resolve(fileName);
-        Files.copy(file.getInputStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
+        // Part.write moves the container's spooled temp file into place when it can instead of copying it
+        Path filePath = uploadPath.resolve(fileName).toAbsolutePath();
+        file.transferTo(filePath.toFile());
         
         return filePath;
     }
     
+    /**
+     * Copies until the end of {@code in}; fails once more than {@code maxBytes} have been read.
+     * Neither stream is closed.
+     */
+    public static long copyBounded(InputStream in, OutputStream out, long maxBytes) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+            if (total > maxBytes) {
+                throw new FileTooLargeException(maxBytes);
+            }
+            out.write(buffer, 0, read);
+        }
+        return total;
+    }
+    
+    public static String sanitizeFileName(String fileName) {
+        // Drop any client-supplied directory components
+        String name = StringUtils.getFilename(StringUtils.cleanPath(fileName != null ? fileName : ""));
+        return name == null || name.isBlank() ? "unnamed" : name;
+    }
+    
     public static void deleteFile(Path filePath) {
         try {
             Files.deleteIfExists(filePath);
@@ -32,6 +65,19 @@ public class FileUtil {
         }
     }
     
+    public static void transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long transferred = source.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                // File shrank underneath us
+                throw new EOFException("Unexpected end of file at position " + position);
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+    
     public static String getFileExtension(String filename) {
         if (filename == null) {
             return "";
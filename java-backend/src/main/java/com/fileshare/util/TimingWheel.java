@@ -0,0 +1,121 @@
+package com.fileshare.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel.
+ *
+ * Level 0 has one slot per tick; each higher level has slots {@code wheelSize} times wider.
+ * An item is placed on the lowest level whose span covers its deadline and cascades down a
+ * level each time the wheel reaches its slot, so scheduling and expiring are O(1) regardless
+ * of how many items are pending. Items beyond the top level's span are re-placed on every
+ * lap of the top level until they come into range.
+ */
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final int wheelSize;
+    private final int levels;
+    private final long[] slotWidth;
+    private final List<Entry<T>>[][] slots;
+
+    private long currentTick;
+    private int size;
+
+    private record Entry<T>(T item, long deadlineTick) {
+    }
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int wheelSize, int levels, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.levels = levels;
+        this.slotWidth = new long[levels];
+        this.slots = new List[levels][wheelSize];
+        this.currentTick = startMillis / tickMillis;
+
+        long width = 1;
+        for (int level = 0; level < levels; level++) {
+            slotWidth[level] = width;
+            width *= wheelSize;
+        }
+    }
+
+    /**
+     * Schedules an item; returns false without scheduling it if its deadline has already passed.
+     */
+    public synchronized boolean schedule(T item, long deadlineMillis) {
+        long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        if (deadlineTick <= currentTick) {
+            return false;
+        }
+        place(new Entry<>(item, deadlineTick));
+        size++;
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward to the given time and returns every item that became due.
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> due = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // Cascade from the top so an item can drop through several levels in one tick
+            for (int level = levels - 1; level > 0; level--) {
+                if (currentTick % slotWidth[level] == 0) {
+                    for (Entry<T> entry : takeSlot(level, slotIndex(level, currentTick))) {
+                        if (entry.deadlineTick() <= currentTick) {
+                            due.add(entry.item());
+                            size--;
+                        } else {
+                            place(entry);
+                        }
+                    }
+                }
+            }
+
+            for (Entry<T> entry : takeSlot(0, slotIndex(0, currentTick))) {
+                due.add(entry.item());
+                size--;
+            }
+        }
+
+        return due;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.deadlineTick() - currentTick;
+        int level = 0;
+        while (level < levels - 1 && delta >= slotWidth[level + 1]) {
+            level++;
+        }
+
+        int index = slotIndex(level, entry.deadlineTick());
+        if (slots[level][index] == null) {
+            slots[level][index] = new ArrayList<>();
+        }
+        slots[level][index].add(entry);
+    }
+
+    private List<Entry<T>> takeSlot(int level, int index) {
+        List<Entry<T>> slot = slots[level][index];
+        if (slot == null) {
+            return List.of();
+        }
+        slots[level][index] = null;
+        return slot;
+    }
+
+    private int slotIndex(int level, long tick) {
+        return (int) ((tick / slotWidth[level]) % wheelSize);
+    }
+}